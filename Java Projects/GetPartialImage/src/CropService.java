@@ -0,0 +1,276 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="CropService.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Batch crop service: cuts regions out of images and encodes them on a pool
+ *  of worker threads. Crops queued for the same source file share one tiled
+ *  cache of its decoded pixels, released once the last of them is done.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CropService implements AutoCloseable {
+
+    public enum Format {
+        PNG("png"), TIFF("tif"), JPEG("jpg");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /** Crop every rectangle out of one image and encode each crop in the given format. */
+    public record Job(String imagePath, List<FRect> rects, Format format) {}
+
+    public record CropResult(String outputPath, long nanos, Exception error) {}
+
+    private final IJawsMako mako;
+    private final Path outputDir;
+    private final ExecutorService pool;
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+    private final AtomicInteger sourcesDecoded = new AtomicInteger();
+    private final int tileSize;
+    private final long cacheBytesPerImage;
+    private final CropStore store;
+
+    /**
+     * @param workers            crops cut and encoded at once
+     * @param tileSize           width and height of the tiles each source image is split into
+     * @param cacheBytesPerImage decoded tile data kept in memory for each source image
+     * @param store              where each crop is held until it has been encoded
+     */
+    public CropService(IJawsMako mako, Path outputDir, int workers, int tileSize, long cacheBytesPerImage, CropStore store) {
+        this.mako = mako;
+        this.outputDir = outputDir;
+        this.tileSize = tileSize;
+        this.cacheBytesPerImage = cacheBytesPerImage;
+        this.store = store;
+        AtomicInteger threadNo = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "crop-worker-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * A source file and the cache of its tiles, shared by the crops queued for it. The cache is
+     * built by the first crop to run and dropped when the last queued crop finishes, so memory
+     * stays bounded however many files a batch covers.
+     */
+    private final class Source {
+        private final String path;
+        private int queuedCrops;        // guarded by the sources map
+        private TiledImageCache cache;
+
+        Source(String path) {
+            this.path = path;
+        }
+
+        synchronized TiledImageCache cache() {
+            if (cache == null) {
+                cache = new TiledImageCache(mako, openImage(path), tileSize, tileSize, cacheBytesPerImage);
+                sourcesDecoded.incrementAndGet();
+            }
+            return cache;
+        }
+
+        synchronized void release() {
+            if (cache != null)
+                cache.release();
+            cache = null;
+        }
+    }
+
+    /**
+     * Queue every crop of a job. Each crop is a separate task, so the crops of one image are
+     * spread across the workers.
+     */
+    public List<Future<CropResult>> submit(Job job) {
+        int count = job.rects().size();
+        sources.compute(job.imagePath(), (path, source) -> {
+            if (source == null)
+                source = new Source(path);
+            source.queuedCrops += count;
+            return source;
+        });
+
+        String stem = new File(job.imagePath()).getName().replaceFirst("[.][^.]+$", "");
+        List<Future<CropResult>> results = new ArrayList<>();
+        for (int i = 0; i < job.rects().size(); i++) {
+            FRect rect = job.rects().get(i);
+            String outputPath = outputDir.resolve(String.format("%s_crop%d.%s", stem, i, job.format().extension)).toString();
+            results.add(pool.submit(() -> crop(job.imagePath(), rect, job.format(), outputPath)));
+        }
+        return results;
+    }
+
+    private CropResult crop(String imagePath, FRect rect, Format format, String outputPath) {
+        long start = System.nanoTime();
+        try (CropStore.Streams output = store.open(mako)) {
+            // The first crop of a file splits it into tiles; later crops of that file read the tiles
+            IDOMImage partialImage = sources.get(imagePath).cache().getPartialImage(rect, output);
+            if (partialImage.isNull())
+                throw new IllegalArgumentException("Crop is outside the image");
+
+            var factory = mako.getFactory();
+            IOutputStream stream = IOutputStream.createToFile(factory, outputPath);
+            switch (format) {
+                case PNG -> IDOMPNGImage.encode(mako, partialImage, stream);
+                case TIFF -> IDOMTIFFImage.encode(mako, partialImage, stream);
+                case JPEG -> IDOMJPEGImage.encode(mako, partialImage, stream);
+            }
+            return new CropResult(outputPath, System.nanoTime() - start, null);
+        } catch (Exception e) {
+            return new CropResult(outputPath, System.nanoTime() - start, e);
+        } finally {
+            finishedWith(imagePath);
+        }
+    }
+
+    // Count off one crop of a file, releasing its tiles after the last one queued
+    private void finishedWith(String imagePath) {
+        Source[] released = { null };
+        sources.computeIfPresent(imagePath, (path, source) -> {
+            if (--source.queuedCrops > 0)
+                return source;
+            released[0] = source;
+            return null;
+        });
+        if (released[0] != null)
+            released[0].release();
+    }
+
+    private IDOMImage openImage(String path) {
+        var factory = mako.getFactory();
+        IInputStream stream = IInputStream.createFromFile(factory, path);
+        String name = path.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".png"))
+            return IDOMPNGImage.create(factory, stream);
+        if (name.endsWith(".tif") || name.endsWith(".tiff"))
+            return IDOMTIFFImage.create(factory, stream);
+        return IDOMJPEGImage.create(factory, stream);
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * One job per line: an image path, an output format (png, tiff or jpeg) and the crops as
+     * x,y,width,height separated by spaces, all separated by tabs. Blank lines and lines
+     * starting with # are ignored.
+     */
+    static List<Job> jobsFromManifest(Path manifest) throws Exception {
+        List<Job> jobs = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest)) {
+            if (line.isBlank() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\t");
+            if (fields.length != 3)
+                throw new IllegalArgumentException("Expected <image><TAB><format><TAB><crops> in manifest line: " + line);
+
+            List<FRect> rects = new ArrayList<>();
+            for (String crop : fields[2].trim().split("\\s+")) {
+                double[] r = Arrays.stream(crop.split(",")).mapToDouble(Double::parseDouble).toArray();
+                if (r.length != 4)
+                    throw new IllegalArgumentException("Expected x,y,width,height but got " + crop);
+                rects.add(new FRect(r[0], r[1], r[2], r[3]));
+            }
+            jobs.add(new Job(fields[0].trim(), rects, Format.valueOf(fields[1].trim().toUpperCase(Locale.ROOT))));
+        }
+        return jobs;
+    }
+
+    static void usage() {
+        System.out.println("CropService <manifest> <output directory> [options]");
+        System.out.println("  --workers <n>       crops cut and encoded at once (default: number of processors)");
+        System.out.println("  --tile-size <px>    tile size for the shared source caches (default 512)");
+        System.out.println("  --cache-mb <n>      decoded tiles kept per source image (default 256)");
+        System.out.println("  --store <store>     where crops are held before encoding: memory, lz4 or file (default memory)");
+    }
+
+    public static void main(String[] args) {
+        try {
+            List<String> positional = new ArrayList<>();
+            int workers = Runtime.getRuntime().availableProcessors();
+            int tileSize = 512;
+            long cacheBytes = 256L << 20;
+            CropStore store = CropStore.MEMORY;
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--workers" -> workers = Integer.parseInt(args[++i]);
+                    case "--tile-size" -> tileSize = Integer.parseInt(args[++i]);
+                    case "--cache-mb" -> cacheBytes = Long.parseLong(args[++i]) << 20;
+                    case "--store" -> store = CropStore.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    default -> positional.add(args[i]);
+                }
+            }
+            if (positional.size() != 2) {
+                usage();
+                System.exit(1);
+                return;
+            }
+
+            List<Job> jobs = jobsFromManifest(Path.of(positional.get(0)));
+            Path outputDir = Files.createDirectories(Path.of(positional.get(1)));
+
+            IJawsMako mako = IJawsMako.create();
+            IJawsMako.enableAllFeatures(mako);
+
+            long start = System.nanoTime();
+            List<Future<CropResult>> pending = new ArrayList<>();
+            try (CropService service = new CropService(mako, outputDir, workers, tileSize, cacheBytes, store)) {
+                for (Job job : jobs)
+                    pending.addAll(service.submit(job));
+
+                long[] latencies = new long[pending.size()];
+                int failed = 0;
+                for (int i = 0; i < pending.size(); i++) {
+                    CropResult result = pending.get(i).get();
+                    latencies[i] = result.nanos();
+                    if (result.error() != null) {
+                        failed++;
+                        System.out.printf("FAILED %s: %s%n", result.outputPath(), result.error().getMessage());
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                Arrays.sort(latencies);
+                System.out.printf("%d crops (%d failed) from %d jobs in %.2f s: %.1f crops/s%n",
+                        latencies.length, failed, jobs.size(), seconds, latencies.length / seconds);
+                if (latencies.length > 0)
+                    System.out.printf("crop latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                            percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.99) / 1e6,
+                            latencies[latencies.length - 1] / 1e6);
+                System.out.printf("%d source images decoded%n", service.sourcesDecoded.get());
+            }
+        } catch (Exception ex) {
+            System.out.println("Exception: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Nearest-rank percentile of sorted values
+    static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+}
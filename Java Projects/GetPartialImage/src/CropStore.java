@@ -0,0 +1,63 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="CropStore.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Where the pixels of a cropped image are kept until it is read back:
+ *  uncompressed in the Mako temp store, LZ4-compressed in the temp store,
+ *  or in a file of their own.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+public enum CropStore {
+    /** Uncompressed in the temp store; best for crops that are encoded straight away. */
+    MEMORY,
+    /** LZ4-compressed in the temp store. */
+    LZ4,
+    /** A temporary file, deleted when its streams are closed; keeps very large crops out of memory. */
+    FILE;
+
+    /**
+     * The streams a raw image reads its pixels from and writes them to. Close them once the
+     * image has been read for the last time, such as after it has been encoded; for a file
+     * store this deletes the file.
+     */
+    public record Streams(IInputStream in, IOutputStream out, File file) implements AutoCloseable {
+        @Override
+        public void close() {
+            // A file still held open by the image cannot be deleted on some systems; leave it for exit then
+            if (file != null && !file.delete() && file.exists())
+                file.deleteOnExit();
+        }
+    }
+
+    public Streams open(IJawsMako mako) {
+        var factory = mako.getFactory();
+        switch (this) {
+            case MEMORY -> {
+                var temp = mako.getTempStore().createTemporaryReaderWriter();
+                return new Streams(temp.toIInputStream(), temp.toIOutputStream(), null);
+            }
+            case LZ4 -> {
+                var temp = mako.getTempStore().createTemporaryReaderWriter();
+                return new Streams(IInputStream.createFromLz4Compressed(factory, temp.toIInputStream()),
+                        IOutputStream.createToLz4Compressed(factory, temp.toIOutputStream()), null);
+            }
+            default -> {
+                try {
+                    File file = File.createTempFile("crop", ".raw");
+                    return new Streams(IInputStream.createFromFile(factory, file.getPath()),
+                            IOutputStream.createToFile(factory, file.getPath()), file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+}
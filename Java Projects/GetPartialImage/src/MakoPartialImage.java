@@ -12,6 +12,10 @@
  */
 
 import com.globalgraphics.JawsMako.jawsmakoIF.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 
 public class MakoPartialImage {
 
@@ -28,9 +32,17 @@ public class MakoPartialImage {
                     IInputStream.createFromFile(factory, testFilePath + "WEV_086.JPG")
             );
 
-            // Extract a portion of the image (the kayak area)
+            // Extract a portion of the image (the kayak area); with --tiled, through a tile cache
+            // that later crops of the same image could also read from
             FRect subImageRect = new FRect(230, 230, 400, 250);
-            IDOMImage partialImage = getPartialImage(mako, image, subImageRect);
+            IDOMImage partialImage;
+            if (args.length > 0 && args[0].equals("--tiled")) {
+                TiledImageCache cache = new TiledImageCache(mako, image, 256, 256, 64L << 20);
+                partialImage = cache.getPartialImage(subImageRect);
+                System.out.println("Tile cache: " + cache.stats());
+            } else {
+                partialImage = getPartialImage(mako, image, subImageRect);
+            }
 
             IDOMPNGImage.encode(
                     mako,
@@ -49,68 +61,199 @@ public class MakoPartialImage {
      * dX, dY are the width and height
      */
     static IDOMImage getPartialImage(IJawsMako mako, IDOMImage image, FRect subImageRect) {
+        return getPartialImage(mako, image, subImageRect, CropStore.LZ4.open(mako));
+    }
+
+    /**
+     * As {@link #getPartialImage(IJawsMako, IDOMImage, FRect)}, writing the crop to {@code output},
+     * which the caller closes once the crop is no longer needed.
+     */
+    static IDOMImage getPartialImage(IJawsMako mako, IDOMImage image, FRect subImageRect, CropStore.Streams output) {
+        return getPartialImages(mako, image, List.of(subImageRect), List.of(output)).get(0);
+    }
+
+    /**
+     * Extract several parts of an image while decoding it only once. The crops are returned
+     * in the order requested, with IDOMImage.Null() for any that are empty or not inside the image.
+     * Rows are read from the top of the image down to the bottom of the lowest crop, and each
+     * row is copied into every crop that covers it. Images of 1, 2 or 4 bits per sample are
+     * cropped at their own depth, shifting the packed samples into place.
+     */
+    static List<IDOMImage> getPartialImages(IJawsMako mako, IDOMImage image, List<FRect> subImageRects) {
+        List<CropStore.Streams> outputs = new ArrayList<>();
+        for (int i = 0; i < subImageRects.size(); i++)
+            outputs.add(CropStore.LZ4.open(mako));
+        return getPartialImages(mako, image, subImageRects, outputs);
+    }
+
+    /**
+     * As {@link #getPartialImages(IJawsMako, IDOMImage, List)}, writing each crop to the streams
+     * at the same position in {@code outputs}; the caller closes them once the crops are no
+     * longer needed. Row buffers come from the calling thread's {@link RowBuffers}.
+     */
+    static List<IDOMImage> getPartialImages(IJawsMako mako, IDOMImage image, List<FRect> subImageRects,
+                                            List<CropStore.Streams> outputs) {
         var factory = mako.getFactory();
+        image = scaleToPackedDepth(factory, image);
         IImageFrame imageFrame = image.getImageFrame(factory);
         int bps = imageFrame.getBPS();
 
-        // Scale bits per sample to 8 or 16 if needed
-        if (bps < 8) {
-            image = IDOMFilteredImage.create(factory, image, IDOMImageBitScalerFilter.create(factory, (short)8));
-            imageFrame = image.getImageFrame(factory);
-            bps = 8;
-        } else if (bps != 8 && bps != 16) {
-            image = IDOMFilteredImage.create(factory, image, IDOMImageBitScalerFilter.create(factory, (short)16));
-            imageFrame = image.getImageFrame(factory);
-            bps = 16;
-        }
-
-        IDOMColorSpace colorSpace = imageFrame.getColorSpace();
         int stride = Math.toIntExact(imageFrame.getRawBytesPerRow());
-        int bpp = imageFrame.getNumChannels() * bps / 8;
+        int bitsPerPixel = imageFrame.getNumChannels() * bps;
 
-        // Check requested region is inside bounds
+        // Check each requested region is inside bounds, and order the rest by their first row
         FRect originalRect = new FRect(0.0, 0.0, imageFrame.getWidth(), imageFrame.getHeight());
-        if (!originalRect.containsRect(subImageRect)) {
-            return IDOMImage.Null();
+        List<IDOMImage> subImages = new ArrayList<>();
+        List<Crop> crops = new ArrayList<>();
+        for (int i = 0; i < subImageRects.size(); i++) {
+            FRect subImageRect = subImageRects.get(i);
+            subImages.add(IDOMImage.Null());
+            if (originalRect.containsRect(subImageRect) && (int) subImageRect.getDY() > 0)
+                crops.add(new Crop(i, subImageRect, bitsPerPixel));
         }
+        if (crops.isEmpty())
+            return subImages;
+        crops.sort(Comparator.comparingInt(Crop::top));
 
-        // Create temp reader/writer
-        var temp = mako.getTempStore().createTemporaryReaderWriter();
-        IInputStream inStream = IInputStream.createFromLz4Compressed(factory, temp.toIInputStream());
-        IOutputStream outStream = IOutputStream.createToLz4Compressed(factory, temp.toIOutputStream());
-
-        // Create the new raw image and writer
-        var imageAndWriter = IDOMRawImage.createWriterAndImage(
-                mako,
-                colorSpace,
-                (long) subImageRect.getDX(),
-                (long) subImageRect.getDY(),
-                (short) bps,
-                imageFrame.getXResolution(),
-                imageFrame.getYResolution(),
-                eImageExtraChannelType.eIECNone,
-                inStream,
-                outStream
-        );
-
-        IDOMImage subImage = imageAndWriter.getDomImage();
-        IImageFrameWriter frameWriter = imageAndWriter.getFrameWriter();
-
-        // Prepare buffers
-        byte[] rowBuffer = new byte[stride];
-        byte[] targetRowBuffer = new byte[(int) subImageRect.getDX() * bpp];
-
-        // Move to the starting scanline
-        imageFrame.skipScanLines((long) subImageRect.getY());
+        // Move to the first scanline any crop needs
+        byte[] rowBuffer = RowBuffers.get().sourceRow(stride);
+        int y = crops.get(0).top();
+        int lastRow = crops.stream().mapToInt(Crop::bottom).max().getAsInt();
+        imageFrame.skipScanLines(y);
+
+        List<Crop> active = new ArrayList<>();
+        int next = 0;
+        for (; y < lastRow; y++) {
+            // Start the crops that begin on this row
+            while (next < crops.size() && crops.get(next).top() == y) {
+                Crop crop = crops.get(next++);
+                subImages.set(crop.index(), crop.open(mako, outputs.get(crop.index()), imageFrame.getColorSpace(), bps,
+                        imageFrame.getXResolution(), imageFrame.getYResolution()));
+                active.add(crop);
+            }
 
-        // Copy only the desired region
-        for (int i = 0; i < (int) subImageRect.getDY(); i++) {
             imageFrame.readScanLine(rowBuffer);
-            System.arraycopy(rowBuffer, (int) subImageRect.getX() * bpp, targetRowBuffer, 0, targetRowBuffer.length);
+
+            // Copy the row into every crop that covers it, finishing those that end here
+            for (Iterator<Crop> it = active.iterator(); it.hasNext(); ) {
+                Crop crop = it.next();
+                crop.write(rowBuffer);
+                if (crop.bottom() == y + 1) {
+                    crop.finish();
+                    it.remove();
+                }
+            }
+        }
+        return subImages;
+    }
+
+    // Scale bits per sample to 8 or 16 if the depth is not one that packs evenly into bytes
+    static IDOMImage scaleToPackedDepth(IEDLClassFactory factory, IDOMImage image) {
+        int bps = image.getImageFrame(factory).getBPS();
+        return switch (bps) {
+            case 1, 2, 4, 8, 16 -> image;
+            default -> IDOMFilteredImage.create(factory, image, IDOMImageBitScalerFilter.create(factory, (short) (bps < 8 ? 8 : 16)));
+        };
+    }
+
+    // Scale bits per sample to 8 or 16 if needed
+    static IDOMImage scaleToWholeBytes(IEDLClassFactory factory, IDOMImage image) {
+        int bps = image.getImageFrame(factory).getBPS();
+        if (bps < 8)
+            return IDOMFilteredImage.create(factory, image, IDOMImageBitScalerFilter.create(factory, (short)8));
+        if (bps != 8 && bps != 16)
+            return IDOMFilteredImage.create(factory, image, IDOMImageBitScalerFilter.create(factory, (short)16));
+        return image;
+    }
+
+    /**
+     * Copy {@code bits} bits of a packed, most significant bit first, row into the start of
+     * {@code dst}, starting {@code srcBit} bits into {@code src}. Bits past the end of the
+     * copy in the last byte of {@code dst} are cleared.
+     */
+    static void copyBits(byte[] src, int srcBit, byte[] dst, int bits) {
+        int srcByte = srcBit >>> 3;
+        int shift = srcBit & 7;
+        int fullBytes = bits >>> 3;
+        int tailBits = bits & 7;
+
+        if (shift == 0) {
+            System.arraycopy(src, srcByte, dst, 0, fullBytes);
+        } else {
+            for (int i = 0; i < fullBytes; i++)
+                dst[i] = (byte) ((src[srcByte + i] << shift) | ((src[srcByte + i + 1] & 0xff) >>> (8 - shift)));
+        }
+
+        if (tailBits > 0) {
+            int b = srcByte + fullBytes;
+            int v = (src[b] & 0xff) << shift;
+            if (shift + tailBits > 8)
+                v |= (src[b + 1] & 0xff) >>> (8 - shift);
+            dst[fullBytes] = (byte) (v & (0xff00 >>> tailBits));
+        }
+    }
+
+    // One requested region, written to its own raw image while the source rows pass by
+    private static class Crop {
+        private final int index;
+        private final int x;
+        private final int top;
+        private final int width;
+        private final int height;
+        private final int bitsPerPixel;
+        private final byte[] targetRowBuffer;
+        private IImageFrameWriter frameWriter;
+
+        Crop(int index, FRect rect, int bitsPerPixel) {
+            this.index = index;
+            this.x = (int) rect.getX();
+            this.top = (int) rect.getY();
+            this.width = (int) rect.getDX();
+            this.height = (int) rect.getDY();
+            this.bitsPerPixel = bitsPerPixel;
+            this.targetRowBuffer = RowBuffers.get().row((width * bitsPerPixel + 7) / 8);
+        }
+
+        int index() {
+            return index;
+        }
+
+        int top() {
+            return top;
+        }
+
+        int bottom() {
+            return top + height;
+        }
+
+        IDOMImage open(IJawsMako mako, CropStore.Streams streams, IDOMColorSpace colorSpace, int bps, double xResolution, double yResolution) {
+
+            // Create the new raw image and writer
+            var imageAndWriter = IDOMRawImage.createWriterAndImage(
+                    mako,
+                    colorSpace,
+                    width,
+                    height,
+                    (short) bps,
+                    xResolution,
+                    yResolution,
+                    eImageExtraChannelType.eIECNone,
+                    streams.in(),
+                    streams.out()
+            );
+            frameWriter = imageAndWriter.getFrameWriter();
+            return imageAndWriter.getDomImage();
+        }
+
+        // Copy only the desired region
+        void write(byte[] rowBuffer) {
+            copyBits(rowBuffer, x * bitsPerPixel, targetRowBuffer, width * bitsPerPixel);
             frameWriter.writeScanLine(targetRowBuffer);
         }
 
-        frameWriter.flushData();
-        return subImage;
+        void finish() {
+            frameWriter.flushData();
+            frameWriter = null;
+        }
     }
 }
@@ -0,0 +1,60 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="RowBuffers.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Scanline buffers kept by each thread and reused from one crop to the
+ *  next, so repeated crops do not allocate new rows every time.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+public final class RowBuffers {
+    // The most buffer memory one thread keeps between crops
+    private static final long MAX_BYTES_PER_THREAD = 8L << 20;
+
+    private static final ThreadLocal<RowBuffers> buffers = ThreadLocal.withInitial(RowBuffers::new);
+
+    // The row being read from the source image, kept apart from the crop rows cut out of it
+    private byte[] source = new byte[0];
+
+    // Crop rows by length, since scanlines are written a whole row at a time
+    private final Map<Integer, byte[]> byLength = new HashMap<>();
+    private long bytes;
+
+    private RowBuffers() {}
+
+    /** The buffers of the calling thread. */
+    public static RowBuffers get() {
+        return buffers.get();
+    }
+
+    /** A buffer of exactly {@code length} bytes to read source scanlines into. */
+    public byte[] sourceRow(int length) {
+        if (source.length != length)
+            source = new byte[length];
+        return source;
+    }
+
+    /**
+     * A buffer of exactly {@code length} bytes. The same array is returned for every request of
+     * that length, so only use it for one row at a time. Once the thread holds more than its
+     * limit, the buffers it has are let go before a new one is made.
+     */
+    public byte[] row(int length) {
+        byte[] row = byLength.get(length);
+        if (row == null) {
+            if (bytes + length > MAX_BYTES_PER_THREAD) {
+                byLength.clear();
+                bytes = 0;
+            }
+            row = new byte[length];
+            byLength.put(length, row);
+            bytes += length;
+        }
+        return row;
+    }
+}
@@ -0,0 +1,274 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="TiledImageCache.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Splits a decoded image into fixed-size tiles held LZ4-compressed in the
+ *  Mako temp store, so that crops read only the tiles they overlap instead
+ *  of decoding the image from the top. Recently used tiles are kept
+ *  decompressed, up to a byte budget. Images of 1, 2 or 4 bits per sample
+ *  keep their depth whenever tile edges fall on byte boundaries.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class TiledImageCache {
+    private final IJawsMako mako;
+    private final IEDLClassFactory factory;
+    private final IDOMImage image;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final long byteBudget;
+
+    // Filled in on first access
+    private IDOMColorSpace colorSpace;
+    private int bps;
+    private int bitsPerPixel;
+    private int width;
+    private int height;
+    private double xResolution;
+    private double yResolution;
+    private int tilesAcross;
+    private IDOMImage[] tiles;
+
+    // Decoded tiles, least recently used first, and the tiles being decoded; both guarded by decoded
+    private final LinkedHashMap<Integer, byte[]> decoded = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, CompletableFuture<byte[]>> decoding = new HashMap<>();
+    private long decodedBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param tileWidth  tile width in pixels
+     * @param tileHeight tile height in pixels
+     * @param byteBudget the most decoded tile data kept in memory
+     */
+    public TiledImageCache(IJawsMako mako, IDOMImage image, int tileWidth, int tileHeight, long byteBudget) {
+        this.mako = mako;
+        this.factory = mako.getFactory();
+        this.image = image;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Extract part of the image, as {@link MakoPartialImage#getPartialImage} does, reading
+     * only the tiles that the area overlaps.
+     */
+    public IDOMImage getPartialImage(FRect subImageRect) {
+        return getPartialImage(subImageRect, CropStore.LZ4.open(mako));
+    }
+
+    /**
+     * As {@link #getPartialImage(FRect)}, writing the crop to {@code output}, which the caller
+     * closes once the crop is no longer needed.
+     */
+    public IDOMImage getPartialImage(FRect subImageRect, CropStore.Streams output) {
+        buildTiles();
+
+        // Check requested region is inside bounds
+        FRect originalRect = new FRect(0.0, 0.0, width, height);
+        if (!originalRect.containsRect(subImageRect))
+            return IDOMImage.Null();
+
+        int left = (int) subImageRect.getX();
+        int top = (int) subImageRect.getY();
+        int cropWidth = (int) subImageRect.getDX();
+        int cropHeight = (int) subImageRect.getDY();
+
+        var imageAndWriter = IDOMRawImage.createWriterAndImage(mako, colorSpace, cropWidth, cropHeight, (short) bps,
+                xResolution, yResolution, eImageExtraChannelType.eIECNone, output.in(), output.out());
+        IImageFrameWriter frameWriter = imageAndWriter.getFrameWriter();
+
+        // Assemble each row of the crop from the tiles it crosses: the tile rows are laid side
+        // by side, which keeps packed samples in place as tiles start on byte boundaries, and
+        // the crop is then cut out of them
+        byte[] targetRowBuffer = RowBuffers.get().row((cropWidth * bitsPerPixel + 7) / 8);
+        int firstTileX = left / tileWidth;
+        int lastTileX = (left + cropWidth - 1) / tileWidth;
+        int spanBytes = 0;
+        for (int tx = firstTileX; tx <= lastTileX; tx++)
+            spanBytes += tileStride(tx);
+        int cropBit = (left - firstTileX * tileWidth) * bitsPerPixel;
+
+        byte[][] rowTiles = new byte[lastTileX - firstTileX + 1][];
+        byte[] spanRow = null;
+        for (int y = top; y < top + cropHeight; y++) {
+            int tileY = y / tileHeight;
+            if (y == top || y % tileHeight == 0) {
+                for (int tx = firstTileX; tx <= lastTileX; tx++)
+                    rowTiles[tx - firstTileX] = tile(tx, tileY);
+                // Taken once the tiles are decoded, since decoding reads into the same source row
+                spanRow = RowBuffers.get().sourceRow(spanBytes);
+            }
+
+            int rowInTile = y - tileY * tileHeight;
+            for (int tx = firstTileX, offset = 0; tx <= lastTileX; offset += tileStride(tx), tx++)
+                System.arraycopy(rowTiles[tx - firstTileX], rowInTile * tileStride(tx), spanRow, offset, tileStride(tx));
+            MakoPartialImage.copyBits(spanRow, cropBit, targetRowBuffer, cropWidth * bitsPerPixel);
+            frameWriter.writeScanLine(targetRowBuffer);
+        }
+
+        frameWriter.flushData();
+        return imageAndWriter.getDomImage();
+    }
+
+    /**
+     * Decode the image once and write it out as tiles, a row of tiles at a time. Packed depths
+     * are kept when every tile starts on a byte boundary, and otherwise scaled to whole bytes.
+     */
+    private synchronized void buildTiles() {
+        if (tiles != null)
+            return;
+
+        IImageFrame imageFrame = MakoPartialImage.scaleToPackedDepth(factory, image).getImageFrame(factory);
+        if (tileWidth * imageFrame.getNumChannels() * imageFrame.getBPS() % 8 != 0)
+            imageFrame = MakoPartialImage.scaleToWholeBytes(factory, image).getImageFrame(factory);
+        colorSpace = imageFrame.getColorSpace();
+        bps = imageFrame.getBPS();
+        bitsPerPixel = imageFrame.getNumChannels() * bps;
+        width = (int) imageFrame.getWidth();
+        height = (int) imageFrame.getHeight();
+        xResolution = imageFrame.getXResolution();
+        yResolution = imageFrame.getYResolution();
+
+        tilesAcross = (width + tileWidth - 1) / tileWidth;
+        int tilesDown = (height + tileHeight - 1) / tileHeight;
+        IDOMImage[] built = new IDOMImage[tilesAcross * tilesDown];
+
+        byte[] rowBuffer = new byte[Math.toIntExact(imageFrame.getRawBytesPerRow())];
+        IImageFrameWriter[] writers = new IImageFrameWriter[tilesAcross];
+        byte[][] tileRows = new byte[tilesAcross][];
+        for (int tx = 0; tx < tilesAcross; tx++)
+            tileRows[tx] = new byte[tileStride(tx)];
+
+        for (int ty = 0; ty < tilesDown; ty++) {
+            int rows = Math.min(tileHeight, height - ty * tileHeight);
+            for (int tx = 0; tx < tilesAcross; tx++) {
+                var temp = mako.getTempStore().createTemporaryReaderWriter();
+                var imageAndWriter = IDOMRawImage.createWriterAndImage(mako, colorSpace, tileWidthAt(tx), rows, (short) bps,
+                        xResolution, yResolution, eImageExtraChannelType.eIECNone,
+                        IInputStream.createFromLz4Compressed(factory, temp.toIInputStream()),
+                        IOutputStream.createToLz4Compressed(factory, temp.toIOutputStream()));
+                writers[tx] = imageAndWriter.getFrameWriter();
+                built[ty * tilesAcross + tx] = imageAndWriter.getDomImage();
+            }
+
+            for (int y = 0; y < rows; y++) {
+                imageFrame.readScanLine(rowBuffer);
+                for (int tx = 0; tx < tilesAcross; tx++) {
+                    MakoPartialImage.copyBits(rowBuffer, tx * tileWidth * bitsPerPixel, tileRows[tx], tileWidthAt(tx) * bitsPerPixel);
+                    writers[tx].writeScanLine(tileRows[tx]);
+                }
+            }
+
+            for (IImageFrameWriter writer : writers)
+                writer.flushData();
+        }
+        tiles = built;
+    }
+
+    private int tileWidthAt(int tx) {
+        return Math.min(tileWidth, width - tx * tileWidth);
+    }
+
+    // Bytes in a row of a tile
+    private int tileStride(int tx) {
+        return (tileWidthAt(tx) * bitsPerPixel + 7) / 8;
+    }
+
+    // The pixels of a tile, decoding it from the temp store if it is not already held. Only one
+    // thread decodes a given tile; others that want it meanwhile wait for that thread's result.
+    private byte[] tile(int tx, int ty) {
+        int key = ty * tilesAcross + tx;
+        CompletableFuture<byte[]> pending;
+        synchronized (decoded) {
+            byte[] pixels = decoded.get(key);
+            if (pixels != null) {
+                hits++;
+                return pixels;
+            }
+            pending = decoding.get(key);
+            if (pending != null) {
+                hits++;
+            } else {
+                misses++;
+                decoding.put(key, new CompletableFuture<>());
+            }
+        }
+        if (pending != null)
+            return pending.join();
+
+        byte[] pixels = null;
+        Throwable failure = null;
+        try {
+            pixels = decodeTile(tx, ty);
+            synchronized (decoded) {
+                if (decoded.put(key, pixels) == null)
+                    decodedBytes += pixels.length;
+                var it = decoded.entrySet().iterator();
+                while (decodedBytes > byteBudget && decoded.size() > 1) {
+                    Map.Entry<Integer, byte[]> eldest = it.next();
+                    decodedBytes -= eldest.getValue().length;
+                    it.remove();
+                }
+            }
+            return pixels;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            // Whatever happened, even an Error such as running out of memory, the waiting threads
+            // must be released and the next request for the tile must be able to decode it again
+            CompletableFuture<byte[]> result;
+            synchronized (decoded) {
+                result = decoding.remove(key);
+            }
+            if (failure == null)
+                result.complete(pixels);
+            else
+                result.completeExceptionally(failure);
+        }
+    }
+
+    private byte[] decodeTile(int tx, int ty) {
+        IImageFrame frame = tiles[ty * tilesAcross + tx].getImageFrame(factory);
+        int stride = tileStride(tx);
+        int rows = Math.min(tileHeight, height - ty * tileHeight);
+        byte[] pixels = new byte[stride * rows];
+        byte[] row = RowBuffers.get().sourceRow(stride);
+        for (int y = 0; y < rows; y++) {
+            frame.readScanLine(row);
+            System.arraycopy(row, 0, pixels, y * stride, stride);
+        }
+        return pixels;
+    }
+
+    /**
+     * Drop the decoded tiles and the tile images. The cache builds them again if it is used again.
+     */
+    public void release() {
+        synchronized (this) {
+            tiles = null;
+        }
+        synchronized (decoded) {
+            decoded.clear();
+            decodedBytes = 0;
+        }
+    }
+
+    public String stats() {
+        synchronized (decoded) {
+            return String.format("%d tile reads, %d from memory (%.1f%%), %.1f MB of %.1f MB budget held",
+                    hits + misses, hits, 100.0 * hits / Math.max(hits + misses, 1),
+                    decodedBytes / 1048576.0, byteBudget / 1048576.0);
+        }
+    }
+}
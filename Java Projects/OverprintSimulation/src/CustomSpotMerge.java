@@ -13,27 +13,123 @@
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.*;
 import com.globalgraphics.JawsMako.jawsmakoIF.*;
 
 public class CustomSpotMerge {
 
+    // Objects that only depend on the job, not the page
+    record JobObjects(IJawsRenderer renderer, IDOMColorSpaceDeviceCMYK cmyk, IDOMColorSpaceDeviceRGB rgb,
+                      IDOMImageColorConverterFilter cc) {
+        static JobObjects create(IJawsMako mako) {
+            IEDLClassFactory factory = mako.getFactory();
+
+            // Colorspace must be CMYK for spot merging
+            IDOMColorSpaceDeviceCMYK cmyk = IDOMColorSpaceDeviceCMYK.create(factory);
+            IDOMColorSpaceDeviceRGB rgb = IDOMColorSpaceDeviceRGB.create(factory);
+            IDOMImageColorConverterFilter cc =
+                    IDOMImageColorConverterFilter.create(factory, rgb,
+                            eRenderingIntent.eRelativeColorimetric,
+                            eBlackPointCompensation.eBPCDefault);
+            return new JobObjects(IJawsRenderer.create(mako), cmyk, rgb, cc);
+        }
+    }
+
+    // The spots of a page, with their names and components, for one set of inks
+    record SpotPlan(CEDLVectColorantInfo spots, CEDLVectWString spotNames, float[][] coefficients) {}
+
+    // Spot plans for the ink sets seen most recently
+    static class SpotPlanCache extends LinkedHashMap<String, SpotPlan> {
+        private static final int MAX_ENTRIES = 16;
+        long hits;
+        long misses;
+
+        SpotPlanCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SpotPlan> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+
+        SpotPlan lookup(IJawsMako mako, CEDLVectCInkInfo inks, IDOMColorSpace cmyk) {
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < inks.size(); i++)
+                key.append(inks.getitem(i).getInkName()).append('\n');
+
+            SpotPlan plan = get(key.toString());
+            if (plan != null) {
+                hits++;
+                return plan;
+            }
+            misses++;
+
+            CEDLVectColorantInfo spots = IRendererTransform.inkInfoToColorantInfo(mako, inks, cmyk);
+            CEDLVectWString spotNames = new CEDLVectWString();
+            for (int i = 0; i < spots.size(); i++)
+                spotNames.append(spots.getitem(i).getName());
+
+            // Spot components to merge, copied out of the SWIG vectors once
+            plan = new SpotPlan(spots, spotNames, spotCoefficients(spots, cmyk.getNumComponents()));
+            put(key.toString(), plan);
+            return plan;
+        }
+    }
+
     public static void main(String[] args) {
         // Adjust to your test files folder
         String testFilePath = "TestFiles/";
 
+        SpotMergeKernel.Kind kernelKind = SpotMergeKernel.Kind.VECTOR;
+        int benchmarkIterations = 0;
+        int mergeThreads = 1;
+        boolean skipEmptySpots = true;
+        boolean reuse = true;
+        String inputFile = "Robots Plus Process Colors.pdf";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--kernel" -> kernelKind = SpotMergeKernel.Kind.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                case "--benchmark" -> benchmarkIterations = Integer.parseInt(args[++i]);
+                case "--merge-threads" -> mergeThreads = Integer.parseInt(args[++i]);
+                case "--no-coverage" -> skipEmptySpots = false;
+                case "--no-reuse" -> reuse = false;
+                case "--input" -> inputFile = args[++i];
+                default -> {
+                    System.out.println("Usage: java [--add-modules jdk.incubator.vector] CustomSpotMerge [options]");
+                    System.out.println("  --input <file>      the PDF to merge, in the test files folder");
+                    System.out.println("  --no-reuse          create the renderer, color spaces and spot list afresh for every page");
+                    System.out.println("  --kernel <k>        merge with the vector (default), scalar or lut kernel;");
+                    System.out.println("                      vector needs the vector directory compiled in, else scalar is used");
+                    System.out.println("  --merge-threads <n> merge rows on a fork/join pool of this many threads (default 1)");
+                    System.out.println("  --no-coverage       merge every spot into every pixel, even where the spot is empty");
+                    System.out.println("  --benchmark <n>     time n merges of the first page with each kernel and the original loop");
+                    return;
+                }
+            }
+        }
+
         try {
             IJawsMako mako = IJawsMako.create();
             IJawsMako.enableAllFeatures(mako);
-            IEDLClassFactory factory = mako.getFactory();
 
             // Load the document
             IPDFInput pdfInput = IPDFInput.create(mako);
-            IDocumentAssembly docAsm = pdfInput.open(testFilePath + "Robots Plus Process Colors.pdf");
+            IDocumentAssembly docAsm = pdfInput.open(testFilePath + inputFile);
             IDocument doc = docAsm.getDocument();
 
+            // Pages of the same size and ink count reuse the frame buffers of earlier pages
+            FrameBufferArena arena = new FrameBufferArena(1L << 30);
+
+            // The renderer, color spaces and converter are created once for the job, and the spots
+            // of each ink set worked out once, unless --no-reuse asks for the old per-page set-up
+            JobObjects jobObjects = reuse ? JobObjects.create(mako) : null;
+            SpotPlanCache spotPlans = new SpotPlanCache();
+            long totalSetupNanos = 0;
+            long totalPageNanos = 0;
+
             for (int pageIndex = 0; pageIndex < doc.getNumPages(); pageIndex++) {
+                long pageStart = System.nanoTime();
                 IDOMFixedPage fixedPage = doc.getPage(pageIndex).getContent();
 
                 // Page bounds & raster geometry
@@ -42,41 +138,29 @@ public class CustomSpotMerge {
                 int pixelWidth = (int) Math.round(bounds.getDX() / 96.0 * resolution);
                 int pixelHeight = (int) Math.round(bounds.getDY() / 96.0 * resolution);
 
-                // Colorspace must be CMYK for spot merging
-                IDOMColorSpaceDeviceCMYK cmyk = IDOMColorSpaceDeviceCMYK.create(factory);
+                JobObjects objects = reuse ? jobObjects : JobObjects.create(mako);
+                IDOMColorSpaceDeviceCMYK cmyk = objects.cmyk();
 
                 // Find inks and build spot list
-                CEDLVectColorantInfo spots =
-                        IRendererTransform.inkInfoToColorantInfo(mako,
-                                IRendererTransform.findInks(mako, fixedPage), cmyk);
-
-                CEDLVectWString spotNames = new CEDLVectWString();
-                for (int i = 0; i < spots.size(); i++)
-                    spotNames.append(spots.getitem(i).getName());
+                CEDLVectCInkInfo inks = IRendererTransform.findInks(mako, fixedPage);
+                if (!reuse)
+                    spotPlans.clear();
+                SpotPlan spotPlan = spotPlans.lookup(mako, inks, cmyk);
+                CEDLVectColorantInfo spots = spotPlan.spots();
+                CEDLVectWString spotNames = spotPlan.spotNames();
 
                 int numProcess = cmyk.getNumComponents(); // 4
                 int numSpots = (int) spots.size();
                 int numBuffers = numProcess + numSpots;
+                long setupNanos = System.nanoTime() - pageStart;
 
-                // Prepare frame buffers
-                ByteBuffer[] buffers = new ByteBuffer[numBuffers];
-                CEDLVectCFrameBufferInfo fb = new CEDLVectCFrameBufferInfo();
-
-                for (int i = 0; i < numBuffers; i++) {
-                    ByteBuffer buf = ByteBuffer.allocateDirect(pixelWidth * pixelHeight);
-                    buf.order(ByteOrder.nativeOrder());
-                    buffers[i] = buf;
-
-                    IJawsRenderer.CFrameBufferInfo info = new IJawsRenderer.CFrameBufferInfo();
-                    info.setBufferOfs(0);
-                    info.setRowStride(pixelWidth);  // bytes per row
-                    info.setPixelStride(0);         // tightly packed
-                    fb.append(info);
-                }
+                // Lease frame buffers for this page
+                FrameBufferArena.Lease lease = arena.lease(pixelWidth, pixelHeight, numBuffers, false);
+                ByteBuffer[] buffers = lease.buffers();
+                CEDLVectCFrameBufferInfo fb = lease.frameBuffers(0);
 
                 // Render true separations
-                IJawsRenderer renderer = IJawsRenderer.create(mako);
-                renderer.renderSeparationsToFrameBuffers(
+                objects.renderer().renderSeparationsToFrameBuffers(
                         fixedPage,
                         (short) 8,
                         true,
@@ -92,62 +176,219 @@ public class CustomSpotMerge {
                         eOptionalContentEvent.eOCEPrint
                 );
 
-                // Create writer and image
-                var pair = IDOMRawImage.createWriterAndImage(mako, cmyk, pixelWidth, pixelHeight,
-                        (short) 8, resolution, resolution);
-
-                IImageFrameWriter frameWriter = pair.getFrameWriter();
+                float[][] coefficients = spotPlan.coefficients();
 
-                // Spot components to merge
-                CEDLVectVectFloat components = new CEDLVectVectFloat();
-                for (int i = 0; i < numSpots; i++) {
-                    CEDLVectFloat comps = new CEDLVectFloat();
-                    CEDLVectFloat vals = spots.getitem(i).getComponents();
-                    for (int c = 0; c < 4; c++)
-                        comps.append(vals.getitem(c));
-                    components.append(comps);
+                if (benchmarkIterations > 0) {
+                    benchmarkMerge(buffers, spots, coefficients, numProcess, pixelWidth, pixelHeight, benchmarkIterations,
+                            mergeThreads, kernelKind, skipEmptySpots);
+                    return;
                 }
 
-                // Merge each spot buffer with process values
-                final float inv255 = 1.0f / 255.0f;
-                byte[] scanline = new byte[pixelWidth * numProcess];
-                for (int y = 0; y < pixelHeight; y++) {
-                    int rowStart = y * pixelWidth;
-                    for (int x = 0; x < pixelWidth; x++) {
-                        for (int c = 0; c < numProcess; c++) {
-                            int idx = x * numProcess + c;
-                            scanline[idx] = buffers[c].get(rowStart + x);
-                            for (int i = 0; i < numSpots; i++) {
-                                float spotVal = (buffers[numProcess + i].get(rowStart + x) & 0xFF) * inv255;
-                                float currentVal = (scanline[idx] & 0xFF) * inv255;
-                                float newVal = 1.0f - (1.0f - components.getitem(i).getitem(c) * spotVal) * (1.0f - currentVal);
-                                scanline[idx] = (byte) (newVal * 255.0f + 0.5f);
-                            }
+                // Merged rows are held compressed, then converted to RGB and encoded to JPEG
+                String outJpeg = String.format("output_%d.jpg", pageIndex);
+                JpegPageWriter jpegWriter = new JpegPageWriter(mako, cmyk, objects.cc(), pixelWidth, pixelHeight, resolution, outJpeg);
+
+                // Merge each spot buffer with process values, skipping spots where they are empty
+                SpotMergeKernel kernel = SpotMergeKernel.create(coefficients, numProcess, pixelWidth, kernelKind);
+                SpotCoverage.Stats coverageStats = skipEmptySpots ? new SpotCoverage.Stats() : null;
+                if (mergeThreads > 1) {
+                    // Rows are merged in parallel; only the writes happen in order, on this thread
+                    try (var parallelMerge = new ParallelSpotMerge(mergeThreads, kernel, coverageStats)) {
+                        parallelMerge.merge(buffers, pixelHeight, jpegWriter::writeRow);
+                    }
+                } else {
+                    byte[][] planes = new byte[numBuffers][pixelWidth];
+                    byte[] scanline = new byte[pixelWidth * numProcess];
+                    SpotCoverage coverage = skipEmptySpots ? new SpotCoverage(numProcess, numSpots, pixelWidth, coverageStats) : null;
+                    for (int y = 0; y < pixelHeight; y++) {
+                        if (coverage != null) {
+                            coverage.readRow(buffers, y, planes);
+                            coverage.mergeRow(kernel, planes, scanline);
+                        } else {
+                            SpotMergeKernel.readRow(buffers, y, pixelWidth, planes);
+                            kernel.mergeRow(planes, scanline);
                         }
+                        jpegWriter.writeRow(scanline);
                     }
-                    frameWriter.writeScanLine(scanline);
                 }
+                if (coverageStats != null)
+                    System.out.println("Spot coverage: " + coverageStats.summary());
 
-                frameWriter.flushData();
-
-                // Convert to RGB and save as JPEG
-                IDOMColorSpaceDeviceRGB rgb = IDOMColorSpaceDeviceRGB.create(factory);
-                IDOMImageColorConverterFilter cc =
-                        IDOMImageColorConverterFilter.create(factory, rgb,
-                                eRenderingIntent.eRelativeColorimetric,
-                                eBlackPointCompensation.eBPCDefault);
-                IDOMFilteredImage filtered = IDOMFilteredImage.create(factory, pair.getDomImage(), cc);
+                jpegWriter.finish();
+                lease.close();
 
-                String outJpeg = String.format("output_%d.jpg", pageIndex);
-                IDOMJPEGImage.encode(mako, filtered,
-                        IOutputStream.createToFile(factory, outJpeg));
+                long pageNanos = System.nanoTime() - pageStart;
+                totalSetupNanos += setupNanos;
+                totalPageNanos += pageNanos;
 
-                System.out.println("Wrote: " + outJpeg);
+                System.out.printf("Wrote: %s in %.1f ms, %.1f ms of it set-up and %.1f ms converting and encoding%n",
+                        outJpeg, pageNanos / 1e6, setupNanos / 1e6, jpegWriter.encodeMillis());
             }
+
+            int pages = (int) doc.getNumPages();
+            if (pages > 0)
+                System.out.printf("%d pages %s reuse: %.1f ms per page, %.2f ms of it set-up; %d spot lists built, %d reused%n",
+                        pages, reuse ? "with" : "without", totalPageNanos / 1e6 / pages, totalSetupNanos / 1e6 / pages,
+                        spotPlans.misses, spotPlans.hits);
+            arena.printReport(System.out);
         }
         catch (Exception ex) {
             ex.printStackTrace();
             System.exit(1);
         }
     }
+
+    // The process components of each spot, indexed [spot][channel]
+    static float[][] spotCoefficients(CEDLVectColorantInfo spots, int numProcess) {
+        float[][] coefficients = new float[(int) spots.size()][numProcess];
+        for (int i = 0; i < coefficients.length; i++) {
+            CEDLVectFloat vals = spots.getitem(i).getComponents();
+            for (int c = 0; c < numProcess; c++)
+                coefficients[i][c] = vals.getitem(c);
+        }
+        return coefficients;
+    }
+
+    /**
+     * Merge a rendered page repeatedly with the original per-pixel loop and with each kernel,
+     * and report the time per merge and how many values differ from the original loop.
+     * With more than one merge thread, the parallel merge is timed at each power of two up
+     * to that many threads.
+     */
+    static void benchmarkMerge(ByteBuffer[] buffers, CEDLVectColorantInfo spots, float[][] coefficients,
+                               int numProcess, int pixelWidth, int pixelHeight, int iterations,
+                               int mergeThreads, SpotMergeKernel.Kind parallelKind, boolean skipEmptySpots) {
+        int numSpots = coefficients.length;
+        System.out.printf("Page is %d x %d pixels with %d spots%n", pixelWidth, pixelHeight, numSpots);
+
+        CEDLVectVectFloat components = new CEDLVectVectFloat();
+        for (int i = 0; i < numSpots; i++) {
+            CEDLVectFloat comps = new CEDLVectFloat();
+            CEDLVectFloat vals = spots.getitem(i).getComponents();
+            for (int c = 0; c < 4; c++)
+                comps.append(vals.getitem(c));
+            components.append(comps);
+        }
+
+        byte[] expected = new byte[pixelWidth * pixelHeight * numProcess];
+        double baseline = timeMerge("original loop", iterations, pixelWidth, pixelHeight, 0, () -> {
+            final float inv255 = 1.0f / 255.0f;
+            byte[] scanline = new byte[pixelWidth * numProcess];
+            for (int y = 0; y < pixelHeight; y++) {
+                int rowStart = y * pixelWidth;
+                for (int x = 0; x < pixelWidth; x++) {
+                    for (int c = 0; c < numProcess; c++) {
+                        int idx = x * numProcess + c;
+                        scanline[idx] = buffers[c].get(rowStart + x);
+                        for (int i = 0; i < numSpots; i++) {
+                            float spotVal = (buffers[numProcess + i].get(rowStart + x) & 0xFF) * inv255;
+                            float currentVal = (scanline[idx] & 0xFF) * inv255;
+                            float newVal = 1.0f - (1.0f - components.getitem(i).getitem(c) * spotVal) * (1.0f - currentVal);
+                            scanline[idx] = (byte) (newVal * 255.0f + 0.5f);
+                        }
+                    }
+                }
+                System.arraycopy(scanline, 0, expected, y * scanline.length, scanline.length);
+            }
+        });
+
+        int rowBytes = pixelWidth * numProcess;
+        for (SpotMergeKernel.Kind kind : SpotMergeKernel.Kind.values()) {
+            SpotMergeKernel kernel = SpotMergeKernel.create(coefficients, numProcess, pixelWidth, kind);
+            if (kernel.kind() != kind) {
+                System.out.println("Vector API not available; run with --add-modules jdk.incubator.vector");
+                continue;
+            }
+
+            byte[][] planes = new byte[buffers.length][pixelWidth];
+            byte[] scanline = new byte[rowBytes];
+            MergeDifference difference = new MergeDifference();
+            timeMerge(kind.name().toLowerCase(Locale.ROOT) + " kernel", iterations, pixelWidth, pixelHeight, baseline, () -> {
+                difference.reset();
+                for (int y = 0; y < pixelHeight; y++) {
+                    SpotMergeKernel.readRow(buffers, y, pixelWidth, planes);
+                    kernel.mergeRow(planes, scanline);
+                    difference.compare(scanline, expected, y * rowBytes);
+                }
+            });
+            difference.print();
+
+            // The same kernel, only merging spots where they are inked
+            SpotCoverage.Stats stats = new SpotCoverage.Stats();
+            SpotCoverage coverage = new SpotCoverage(numProcess, numSpots, pixelWidth, stats);
+            timeMerge("  + coverage", iterations, pixelWidth, pixelHeight, baseline, () -> {
+                difference.reset();
+                for (int y = 0; y < pixelHeight; y++) {
+                    coverage.readRow(buffers, y, planes);
+                    coverage.mergeRow(kernel, planes, scanline);
+                    difference.compare(scanline, expected, y * rowBytes);
+                }
+            });
+            difference.print();
+            System.out.println("  " + stats.summary());
+        }
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < mergeThreads; threads *= 2)
+            threadCounts.add(threads);
+        if (mergeThreads > 1)
+            threadCounts.add(mergeThreads);
+
+        SpotMergeKernel parallelKernel = SpotMergeKernel.create(coefficients, numProcess, pixelWidth, parallelKind);
+        for (int threads : threadCounts) {
+            MergeDifference difference = new MergeDifference();
+            int[] row = new int[1];
+            try (var parallelMerge = new ParallelSpotMerge(threads, parallelKernel, skipEmptySpots ? new SpotCoverage.Stats() : null)) {
+                timeMerge(String.format("%d threads", threads), iterations, pixelWidth, pixelHeight, baseline, () -> {
+                    difference.reset();
+                    row[0] = 0;
+                    parallelMerge.merge(buffers, pixelHeight, scanline -> difference.compare(scanline, expected, row[0]++ * rowBytes));
+                });
+            }
+            difference.print();
+        }
+    }
+
+    // How far merged rows are from the original loop's rows
+    private static class MergeDifference {
+        long differing;
+        int largest;
+
+        void reset() {
+            differing = 0;
+            largest = 0;
+        }
+
+        void compare(byte[] scanline, byte[] expected, int offset) {
+            if (Arrays.equals(scanline, 0, scanline.length, expected, offset, offset + scanline.length))
+                return;
+            for (int i = 0; i < scanline.length; i++) {
+                int diff = Math.abs((scanline[i] & 0xFF) - (expected[offset + i] & 0xFF));
+                if (diff != 0) {
+                    differing++;
+                    largest = Math.max(largest, diff);
+                }
+            }
+        }
+
+        void print() {
+            if (differing == 0)
+                System.out.println("  identical to the original loop");
+            else
+                System.out.printf("  %d values differ from the original loop, by at most %d%n", differing, largest);
+        }
+    }
+
+    // Run a merge once to warm up, then time it; returns the seconds per merge
+    private static double timeMerge(String name, int iterations, int pixelWidth, int pixelHeight, double baseline, Runnable merge) {
+        merge.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            merge.run();
+        double seconds = (System.nanoTime() - start) / 1e9 / iterations;
+        System.out.printf("%-14s %8.2f ms per page, %7.1f Mpixel/s%s%n", name, seconds * 1000,
+                (double) pixelWidth * pixelHeight / seconds / 1e6,
+                baseline > 0 ? String.format(", %.1fx the original loop", baseline / seconds) : "");
+        return seconds;
+    }
 }
@@ -0,0 +1,75 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="JpegPageWriter.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Collects merged CMYK rows in an LZ4-compressed raw image in the temp
+ *  store, then converts it to RGB and encodes it to a JPEG. The encoder
+ *  pulls rows through the color converter, so no more than a row of the
+ *  page is held uncompressed at a time.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+
+public class JpegPageWriter {
+    private final IJawsMako mako;
+    private final IEDLClassFactory factory;
+    private final IDOMImageColorConverterFilter converter;
+    private final int height;
+    private final String outputFile;
+    private final IImageFrameWriter frameWriter;
+    private final IDOMImage cmykImage;
+    private int rowsWritten;
+    private long encodeNanos;
+
+    /**
+     * @param converter converts the page from {@code cmyk} to RGB
+     * @param outputFile the JPEG to write
+     */
+    public JpegPageWriter(IJawsMako mako, IDOMColorSpace cmyk, IDOMImageColorConverterFilter converter,
+                          int width, int height, double resolution, String outputFile) {
+        this.mako = mako;
+        this.factory = mako.getFactory();
+        this.converter = converter;
+        this.height = height;
+        this.outputFile = outputFile;
+
+        // The page is held compressed in the temp store rather than as raw pixels on the heap
+        var temp = mako.getTempStore().createTemporaryReaderWriter();
+        var pair = IDOMRawImage.createWriterAndImage(mako, cmyk, width, height, (short) 8, resolution, resolution,
+                eImageExtraChannelType.eIECNone,
+                IInputStream.createFromLz4Compressed(factory, temp.toIInputStream()),
+                IOutputStream.createToLz4Compressed(factory, temp.toIOutputStream()));
+        frameWriter = pair.getFrameWriter();
+        cmykImage = pair.getDomImage();
+    }
+
+    /**
+     * Add the next merged CMYK row. The row is copied, so the caller can reuse it straight away.
+     */
+    public void writeRow(byte[] cmykRow) {
+        frameWriter.writeScanLine(cmykRow);
+        rowsWritten++;
+    }
+
+    /**
+     * Convert and encode the JPEG once every row has been written.
+     */
+    public void finish() {
+        if (rowsWritten != height)
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows were written");
+        frameWriter.flushData();
+
+        long start = System.nanoTime();
+        IDOMFilteredImage converted = IDOMFilteredImage.create(factory, cmykImage, converter);
+        IDOMJPEGImage.encode(mako, converted, IOutputStream.createToFile(factory, outputFile));
+        encodeNanos = System.nanoTime() - start;
+    }
+
+    /** How long converting and encoding took, in ms. */
+    public double encodeMillis() {
+        return encodeNanos / 1e6;
+    }
+}
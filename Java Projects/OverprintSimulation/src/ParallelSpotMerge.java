@@ -0,0 +1,117 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="ParallelSpotMerge.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Merges the spot separations of a page on a fork/join pool. Rows are
+ *  merged in blocks, split across the workers, and handed to the writer in
+ *  page order while the next block is being merged.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+public class ParallelSpotMerge implements AutoCloseable {
+    // Rows merged by one task before it stops splitting
+    private static final int GRAIN_ROWS = 8;
+
+    private final ForkJoinPool pool;
+    private final int threads;
+    private final int numPlanes;
+    private final int width;
+    private final int rowBytes;
+
+    // Each worker's kernel and row buffers
+    private final ThreadLocal<Scratch> scratch;
+
+    private record Scratch(SpotMergeKernel kernel, byte[][] planes, SpotCoverage coverage) {}
+
+    /**
+     * @param kernel   the kernel to merge with; each worker uses {@link SpotMergeKernel#forAnotherThread}
+     * @param coverage collects the spot coverage of the page, so that spots are only merged where
+     *                 they are inked; null to merge every spot into every pixel
+     */
+    public ParallelSpotMerge(int threads, SpotMergeKernel kernel, SpotCoverage.Stats coverage) {
+        this.pool = new ForkJoinPool(threads);
+        this.threads = threads;
+        this.numPlanes = kernel.numProcess + kernel.numSpots;
+        this.width = kernel.width;
+        this.rowBytes = kernel.width * kernel.numProcess;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(kernel.forAnotherThread(), new byte[numPlanes][width],
+                coverage != null ? new SpotCoverage(kernel.numProcess, kernel.numSpots, width, coverage) : null));
+    }
+
+    /**
+     * Merge every row of the frame buffers and pass the merged rows to {@code rowWriter},
+     * top to bottom, on the calling thread. The row arrays are reused once the call returns.
+     */
+    public void merge(ByteBuffer[] buffers, int height, Consumer<byte[]> rowWriter) {
+        // Two blocks, so one can be written while the other is merged
+        int blockRows = Math.min(height, Math.max(4 * threads * GRAIN_ROWS, 64));
+        byte[][][] blocks = new byte[2][blockRows][rowBytes];
+
+        ForkJoinTask<Void> pending = pool.submit(new MergeRows(buffers, blocks[0], 0, 0, Math.min(blockRows, height)));
+        for (int blockTop = 0, block = 0; blockTop < height; blockTop += blockRows, block ^= 1) {
+            pending.join();
+
+            int nextTop = blockTop + blockRows;
+            ForkJoinTask<Void> next = null;
+            if (nextTop < height)
+                next = pool.submit(new MergeRows(buffers, blocks[block ^ 1], nextTop, 0, Math.min(blockRows, height - nextTop)));
+
+            int rows = Math.min(blockRows, height - blockTop);
+            for (int y = 0; y < rows; y++)
+                rowWriter.accept(blocks[block][y]);
+
+            pending = next;
+        }
+    }
+
+    // Merge rows [first, first + count) of a block, splitting the range across the pool
+    private class MergeRows extends RecursiveAction {
+        private final ByteBuffer[] buffers;
+        private final byte[][] block;
+        private final int blockTop;
+        private final int first;
+        private final int count;
+
+        MergeRows(ByteBuffer[] buffers, byte[][] block, int blockTop, int first, int count) {
+            this.buffers = buffers;
+            this.block = block;
+            this.blockTop = blockTop;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count > GRAIN_ROWS) {
+                int half = count / 2;
+                invokeAll(new MergeRows(buffers, block, blockTop, first, half),
+                          new MergeRows(buffers, block, blockTop, first + half, count - half));
+                return;
+            }
+
+            Scratch s = scratch.get();
+            for (int y = first; y < first + count; y++) {
+                if (s.coverage() != null) {
+                    s.coverage().readRow(buffers, blockTop + y, s.planes());
+                    s.coverage().mergeRow(s.kernel(), s.planes(), block[y]);
+                } else {
+                    SpotMergeKernel.readRow(buffers, blockTop + y, width, s.planes());
+                    s.kernel().mergeRow(s.planes(), block[y]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
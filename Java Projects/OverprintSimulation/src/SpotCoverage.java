@@ -0,0 +1,109 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="SpotCoverage.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Finds which spot separations are inked in a row, and the span of the
+ *  row they cover, as the row is read from the frame buffers, so the merge
+ *  can leave empty spots and uninked pixels alone.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SpotCoverage {
+    // Bytes compared at a time when looking for the last inked pixel of a row
+    private static final int CHUNK = 64;
+
+    /**
+     * Totals for a page, shared by every thread merging it.
+     */
+    public static class Stats {
+        final LongAdder rows = new LongAdder();
+        final LongAdder spotRows = new LongAdder();
+        final LongAdder inkedSpotRows = new LongAdder();
+        final LongAdder mergedPixels = new LongAdder();
+        final LongAdder pixels = new LongAdder();
+
+        public String summary() {
+            return String.format("%.1f%% of spot rows inked, %.1f%% of pixels merged",
+                    100.0 * inkedSpotRows.sum() / Math.max(spotRows.sum(), 1),
+                    100.0 * mergedPixels.sum() / Math.max(pixels.sum(), 1));
+        }
+    }
+
+    private final int numProcess;
+    private final int numSpots;
+    private final int width;
+    private final byte[] zeros;
+    private final Stats stats;
+
+    // The spots inked in the last row read, and the span of the row they cover
+    private final int[] spots;
+    private int spotCount;
+    private int from;
+    private int to;
+
+    public SpotCoverage(int numProcess, int numSpots, int width, Stats stats) {
+        this.numProcess = numProcess;
+        this.numSpots = numSpots;
+        this.width = width;
+        this.zeros = new byte[width];
+        this.stats = stats;
+        this.spots = new int[numSpots];
+    }
+
+    /**
+     * Read row {@code y} of every frame buffer into {@code planes}, as
+     * {@link SpotMergeKernel#readRow} does, and find where each spot is inked.
+     */
+    public void readRow(ByteBuffer[] buffers, int y, byte[][] planes) {
+        SpotMergeKernel.readRow(buffers, y, width, planes);
+
+        spotCount = 0;
+        from = width;
+        to = 0;
+        for (int i = 0; i < numSpots; i++) {
+            byte[] spot = planes[numProcess + i];
+            int first = Arrays.mismatch(spot, 0, width, zeros, 0, width);
+            if (first < 0)
+                continue;
+            spots[spotCount++] = i;
+            from = Math.min(from, first);
+            to = Math.max(to, lastInked(spot, first) + 1);
+        }
+
+        stats.rows.increment();
+        stats.spotRows.add(numSpots);
+        stats.inkedSpotRows.add(spotCount);
+        stats.pixels.add(width);
+        if (spotCount > 0)
+            stats.mergedPixels.add(to - from);
+    }
+
+    // The last non-zero byte of a row, searching back from the end a chunk at a time
+    private int lastInked(byte[] row, int first) {
+        for (int end = width; end > first; end -= CHUNK) {
+            int start = Math.max(first, end - CHUNK);
+            if (Arrays.mismatch(row, start, end, zeros, 0, end - start) >= 0) {
+                for (int x = end - 1; ; x--) {
+                    if (row[x] != 0)
+                        return x;
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Merge the row last read, blending only the spots that are inked in it and only across
+     * the span they cover. A spot value of zero leaves the process value unchanged, so the
+     * result is the same as merging every spot into every pixel.
+     */
+    public void mergeRow(SpotMergeKernel kernel, byte[][] planes, byte[] scanline) {
+        kernel.mergeRow(planes, scanline, spots, spotCount, from, Math.max(from, to));
+    }
+}
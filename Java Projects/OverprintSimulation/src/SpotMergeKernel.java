@@ -0,0 +1,204 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="SpotMergeKernel.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Merges rendered spot separations into the process channels a row at a
+ *  time, with the Vector API when the jdk.incubator.vector module is
+ *  available, plain scalar code, or lookup tables.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.nio.ByteBuffer;
+
+public abstract class SpotMergeKernel {
+    protected static final float INV255 = 1.0f / 255.0f;
+
+    public enum Kind { VECTOR, SCALAR, LUT }
+
+    protected final float[][] coefficients;
+    protected final int numProcess;
+    protected final int numSpots;
+    protected final int width;
+    private final int[] allSpots;
+
+    /**
+     * @param coefficients the process components of each spot, {@code coefficients[spot][channel]}
+     * @param numProcess   the number of process channels
+     * @param width        pixels in a row
+     */
+    protected SpotMergeKernel(float[][] coefficients, int numProcess, int width) {
+        this.coefficients = coefficients;
+        this.numProcess = numProcess;
+        this.numSpots = coefficients.length;
+        this.width = width;
+        this.allSpots = new int[numSpots];
+        for (int i = 0; i < numSpots; i++)
+            allSpots[i] = i;
+    }
+
+    /**
+     * Merge one row. {@code planes[c]} holds the row of process channel {@code c} and
+     * {@code planes[numProcess + i]} the row of spot {@code i}; the merged pixels are written
+     * to {@code scanline} with the process channels interleaved. Each spot is composited over
+     * the result of the previous one, which is rounded to 8 bits after every spot.
+     * <p>
+     * Kernels may keep scratch space between calls; see {@link #forAnotherThread}.
+     */
+    public void mergeRow(byte[][] planes, byte[] scanline) {
+        mergeRow(planes, scanline, allSpots, numSpots, 0, width);
+    }
+
+    /**
+     * Merge one row, blending only the listed spots, in order, and only into pixels
+     * {@code from} to {@code to - 1}. Elsewhere the process values are copied unchanged,
+     * which is the correct result wherever the spots not listed are zero.
+     */
+    public abstract void mergeRow(byte[][] planes, byte[] scanline, int[] spots, int spotCount, int from, int to);
+
+    // Interleave pixels [from, to) of a process channel into the scanline unchanged
+    protected final void copyProcess(byte[] process, byte[] scanline, int c, int from, int to) {
+        for (int x = from, idx = from * numProcess + c; x < to; x++, idx += numProcess)
+            scanline[idx] = process[x];
+    }
+
+    public abstract Kind kind();
+
+    /**
+     * A kernel giving the same results that can run on another thread at the same time as
+     * this one: a new kernel if this one keeps scratch space, otherwise this one.
+     */
+    public abstract SpotMergeKernel forAnotherThread();
+
+    /**
+     * Copy row {@code y} of every frame buffer into {@code planes} with one bulk read each.
+     */
+    public static void readRow(ByteBuffer[] buffers, int y, int width, byte[][] planes) {
+        int offset = y * width;
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i].get(offset, planes[i], 0, width);
+    }
+
+    /**
+     * A kernel of the given kind. The Vector API kernel is only available when the sources in
+     * the vector directory are compiled in and the incubator module is added with
+     * {@code --add-modules jdk.incubator.vector}; otherwise the scalar kernel is used.
+     */
+    public static SpotMergeKernel create(float[][] coefficients, int numProcess, int width, Kind kind) {
+        if (kind == Kind.LUT)
+            return new Lut(coefficients, numProcess, width);
+        if (kind == Kind.VECTOR && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Loaded by name so this class still links when the module is missing
+                return (SpotMergeKernel) Class.forName("VectorSpotMergeKernel")
+                        .getConstructor(float[][].class, int.class, int.class)
+                        .newInstance(coefficients, numProcess, width);
+            } catch (ClassNotFoundException e) {
+                // Built without the vector directory
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("Vector API kernel unavailable, using the scalar kernel: " + e);
+            }
+        }
+        return new Scalar(coefficients, numProcess, width);
+    }
+
+    /**
+     * Straightforward loop over pixels, channels and spots, reading only primitive arrays.
+     */
+    public static class Scalar extends SpotMergeKernel {
+
+        public Scalar(float[][] coefficients, int numProcess, int width) {
+            super(coefficients, numProcess, width);
+        }
+
+        @Override
+        public void mergeRow(byte[][] planes, byte[] scanline, int[] spots, int spotCount, int from, int to) {
+            for (int c = 0; c < numProcess; c++) {
+                byte[] process = planes[c];
+                copyProcess(process, scanline, c, 0, from);
+                for (int x = from, idx = from * numProcess + c; x < to; x++, idx += numProcess) {
+                    int value = process[x] & 0xFF;
+                    for (int n = 0; n < spotCount; n++) {
+                        int i = spots[n];
+                        float spotVal = (planes[numProcess + i][x] & 0xFF) * INV255;
+                        float currentVal = value * INV255;
+                        float newVal = 1.0f - (1.0f - coefficients[i][c] * spotVal) * (1.0f - currentVal);
+                        value = (int) (newVal * 255.0f + 0.5f) & 0xFF;
+                    }
+                    scanline[idx] = (byte) value;
+                }
+                copyProcess(process, scanline, c, to, width);
+            }
+        }
+
+        @Override
+        public Kind kind() {
+            return Kind.SCALAR;
+        }
+
+        @Override
+        public SpotMergeKernel forAnotherThread() {
+            return this;
+        }
+    }
+
+    /**
+     * Looks up the result of compositing each spot over each process value. The table for
+     * a spot and process channel holds the rounded result for every pair of 8-bit spot and
+     * process values, computed with exactly the arithmetic of the scalar kernel, so the
+     * results are identical with no floating point per pixel. The tables take 64 KB for
+     * each spot and channel and are built once, when the kernel is created.
+     */
+    public static class Lut extends SpotMergeKernel {
+        // tables[spot * numProcess + channel][spotValue << 8 | processValue]
+        private final byte[][] tables;
+
+        public Lut(float[][] coefficients, int numProcess, int width) {
+            super(coefficients, numProcess, width);
+            tables = new byte[numSpots * numProcess][];
+            for (int i = 0; i < numSpots; i++) {
+                for (int c = 0; c < numProcess; c++) {
+                    byte[] table = new byte[256 * 256];
+                    for (int s = 0; s < 256; s++) {
+                        float spotVal = s * INV255;
+                        for (int v = 0; v < 256; v++) {
+                            float currentVal = v * INV255;
+                            float newVal = 1.0f - (1.0f - coefficients[i][c] * spotVal) * (1.0f - currentVal);
+                            table[s << 8 | v] = (byte) (newVal * 255.0f + 0.5f);
+                        }
+                    }
+                    tables[i * numProcess + c] = table;
+                }
+            }
+        }
+
+        @Override
+        public void mergeRow(byte[][] planes, byte[] scanline, int[] spots, int spotCount, int from, int to) {
+            for (int c = 0; c < numProcess; c++) {
+                byte[] process = planes[c];
+                copyProcess(process, scanline, c, 0, from);
+                for (int x = from, idx = from * numProcess + c; x < to; x++, idx += numProcess) {
+                    int value = process[x] & 0xFF;
+                    for (int n = 0; n < spotCount; n++) {
+                        int i = spots[n];
+                        value = tables[i * numProcess + c][(planes[numProcess + i][x] & 0xFF) << 8 | value] & 0xFF;
+                    }
+                    scanline[idx] = (byte) value;
+                }
+                copyProcess(process, scanline, c, to, width);
+            }
+        }
+
+        @Override
+        public Kind kind() {
+            return Kind.LUT;
+        }
+
+        // The tables are only read once built, so threads can share them
+        @Override
+        public SpotMergeKernel forAnotherThread() {
+            return this;
+        }
+    }
+}
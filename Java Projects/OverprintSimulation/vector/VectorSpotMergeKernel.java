@@ -0,0 +1,101 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="VectorSpotMergeKernel.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  SpotMergeKernel using the JDK Vector API. It is kept out of src so the
+ *  sample builds without the incubator module; to use it, compile this
+ *  directory together with src and run with the module added:
+ *    javac --add-modules jdk.incubator.vector -d out src/*.java vector/*.java
+ *    java --add-modules jdk.incubator.vector -cp out:<mako jar> CustomSpotMerge
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorSpotMergeKernel extends SpotMergeKernel {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    // The row being merged, widened to ints, and each spot as a fraction of full coverage
+    private final int[] values;
+    private final float[][] spotVals;
+
+    public VectorSpotMergeKernel(float[][] coefficients, int numProcess, int width) {
+        super(coefficients, numProcess, width);
+        if (FLOATS.length() != INTS.length())
+            throw new IllegalStateException("Float and int vectors have different lane counts");
+        values = new int[width];
+        spotVals = new float[numSpots][width];
+    }
+
+    /**
+     * The same arithmetic as the scalar kernel, in the same order and without fused
+     * multiply-adds, so the results are identical.
+     */
+    @Override
+    public void mergeRow(byte[][] planes, byte[] scanline, int[] spots, int spotCount, int from, int to) {
+        for (int n = 0; n < spotCount; n++) {
+            int i = spots[n];
+            byte[] spot = planes[numProcess + i];
+            float[] spotVal = spotVals[i];
+            for (int x = from; x < to; x++)
+                spotVal[x] = (spot[x] & 0xFF) * INV255;
+        }
+
+        int vectorEnd = from + FLOATS.loopBound(to - from);
+        for (int c = 0; c < numProcess; c++) {
+            byte[] process = planes[c];
+            copyProcess(process, scanline, c, 0, from);
+            for (int x = from; x < to; x++)
+                values[x] = process[x] & 0xFF;
+
+            if (spotCount > 0) {
+                int x = from;
+                for (; x < vectorEnd; x += FLOATS.length()) {
+                    IntVector value = IntVector.fromArray(INTS, values, x);
+                    for (int n = 0; n < spotCount; n++) {
+                        int i = spots[n];
+                        FloatVector spotVal = FloatVector.fromArray(FLOATS, spotVals[i], x);
+                        FloatVector currentVal = ((FloatVector) value.convert(VectorOperators.I2F, 0)).mul(INV255);
+                        FloatVector newVal = spotVal.mul(coefficients[i][c]).neg().add(1.0f)
+                                .mul(currentVal.neg().add(1.0f))
+                                .neg().add(1.0f);
+                        value = ((IntVector) newVal.mul(255.0f).add(0.5f).convert(VectorOperators.F2I, 0)).and(0xFF);
+                    }
+                    value.intoArray(values, x);
+                }
+
+                // Remaining pixels
+                for (; x < to; x++) {
+                    int value = values[x];
+                    for (int n = 0; n < spotCount; n++) {
+                        int i = spots[n];
+                        float currentVal = value * INV255;
+                        float newVal = 1.0f - (1.0f - coefficients[i][c] * spotVals[i][x]) * (1.0f - currentVal);
+                        value = (int) (newVal * 255.0f + 0.5f) & 0xFF;
+                    }
+                    values[x] = value;
+                }
+            }
+
+            for (int x = from, idx = from * numProcess + c; x < to; x++, idx += numProcess)
+                scanline[idx] = (byte) values[x];
+            copyProcess(process, scanline, c, to, width);
+        }
+    }
+
+    @Override
+    public Kind kind() {
+        return Kind.VECTOR;
+    }
+
+    @Override
+    public SpotMergeKernel forAnotherThread() {
+        return new VectorSpotMergeKernel(coefficients, numProcess, width);
+    }
+}
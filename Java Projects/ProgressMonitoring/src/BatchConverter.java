@@ -0,0 +1,253 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="BatchConverter.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Long-running batch converter built on ProgressMonitoring. One IJawsMako
+ *  instance is kept warm for the whole run and jobs are scheduled on a pool
+ *  of workers, each of which keeps its progress monitors and transforms
+ *  from one job to the next.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+public class BatchConverter {
+
+    record Job(String inputPath, String outputPath) {}
+
+    record JobResult(Job job, int pageCount, long nanos, Exception error, String abortReason) {}
+
+    /**
+     * State belonging to one worker thread that outlives the jobs it runs. Once the watchdog
+     * has fired on one of its jobs, its IAbort stays signalled, so the worker is discarded.
+     */
+    static class Worker {
+        // The tick callbacks are held here so they live as long as the monitors that call them
+        final ProgressMonitoring.ProgressHandler inputHandler;
+        final ProgressMonitoring.ProgressHandler customHandler;
+        final ProgressMonitoring.ProgressHandler transformHandler;
+        final ProgressMonitoring.ProgressHandler chainHandler;
+        final ProgressMonitoring.ProgressEventHandler outputHandler;
+        final IAbort abort;
+        final IProgressMonitor inputMonitor;
+        final IProgressMonitor outputMonitor;
+        final ProgressMonitoring.ConverterParams template;
+        final TransformPool transformPool;
+        boolean spent;              // the IAbort has been signalled, so no further job can run
+
+        Worker(IJawsMako jawsMako, ProgressMonitoring.ConverterParams settings, MetricsSink metrics) {
+            settings.progressClock = new ConversionWatchdog.ProgressClock();
+            inputHandler = new ProgressMonitoring.ProgressHandler(MetricsSink.Stage.INPUT, metrics, settings.progressClock);
+            customHandler = new ProgressMonitoring.ProgressHandler(MetricsSink.Stage.CUSTOM_TRANSFORM, metrics, settings.progressClock);
+            transformHandler = new ProgressMonitoring.ProgressHandler(MetricsSink.Stage.COLOR_CONVERT, metrics, settings.progressClock);
+            chainHandler = new ProgressMonitoring.ProgressHandler(MetricsSink.Stage.TRANSFORM_CHAIN, metrics, settings.progressClock);
+
+            abort = IAbort.create();
+            inputMonitor = IProgressMonitor.create(inputHandler.progressTick, abort);
+            outputMonitor = IProgressMonitor.create(abort);
+
+            // Output events keep the stall clock moving while a long page is written
+            outputHandler = ProgressMonitoring.ProgressEventHandler.create(metrics, settings.progressClock, false);
+            outputMonitor.setProgressEventHandler(outputHandler.getProgressEventHandler());
+
+            template = settings;
+            template.customTransformProgressMonitor = IProgressMonitor.create(customHandler.progressTick, abort);
+            template.transformProgressMonitor = IProgressMonitor.create(transformHandler.progressTick, abort);
+            template.transformChainProgressMonitor = IProgressMonitor.create(chainHandler.progressTick, abort);
+            template.metrics = metrics;
+
+            transformPool = new TransformPool(() -> new ProgressMonitoring.PageTransforms(template, jawsMako));
+        }
+
+        JobResult run(IJawsMako jawsMako, Job job, ConversionWatchdog watchdog) {
+            long start = System.nanoTime();
+            ConversionWatchdog.Watch watch = watchdog.watch(job.inputPath(), abort, template.progressClock,
+                    template.timeBudgetMillis, template.stallTimeoutMillis);
+            int pageCount = 0;
+            Exception error = null;
+            try (watch) {
+                var params = template.forJob(job.inputPath(), job.outputPath());
+
+                IInput input = IInput.create(jawsMako, params.inputFileFormat, inputMonitor);
+                IOutput output = IOutput.create(jawsMako, params.outputFileFormat, outputMonitor);
+
+                long openStart = System.nanoTime();
+                IDocumentAssembly assembly = input.open(params.inputFilePath);
+                params.metrics.recordLatency(MetricsSink.Stage.INPUT, System.nanoTime() - openStart);
+
+                pageCount = ProgressMonitoring.outputIterateByPage(params, jawsMako, assembly, output, transformPool);
+            } catch (Exception e) {
+                error = e;
+            }
+            long nanos = System.nanoTime() - start;
+
+            // The watch is closed, so it can no longer fire. It may have fired after the last page
+            // was written; the job still succeeded, but the IAbort is signalled all the same.
+            spent = watch.abortReason() != null;
+            if (error != null)
+                return new JobResult(job, 0, nanos, error, watch.abortReason());
+            return new JobResult(job, pageCount, nanos, null, null);
+        }
+    }
+
+    /**
+     * Every supported file in a directory, converted to the same name with a new extension.
+     */
+    static List<Job> jobsFromDirectory(Path inputDir, Path outputDir, String outputExtension) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(inputDir)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted().toList()) {
+                String name = file.getFileName().toString();
+                if (!ProgressMonitoring.ConverterParams.isSupported(name))
+                    continue;
+                String stem = name.substring(0, name.lastIndexOf('.'));
+                jobs.add(new Job(file.toString(), outputDir.resolve(stem + "." + outputExtension).toString()));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * One job per line, as an input and an output path separated by a tab. Blank lines and
+     * lines starting with # are ignored.
+     */
+    static List<Job> jobsFromManifest(Path manifest) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest)) {
+            if (line.isBlank() || line.startsWith("#"))
+                continue;
+            String[] paths = line.split("\t");
+            if (paths.length != 2)
+                throw new IllegalArgumentException("Expected <input><TAB><output> in manifest line: " + line);
+            jobs.add(new Job(paths[0].trim(), paths[1].trim()));
+        }
+        return jobs;
+    }
+
+    static void usage() {
+        System.out.println("BatchConverter <input directory> <output directory> [options]");
+        System.out.println("BatchConverter --manifest <file> [options]");
+        System.out.println("  --format <ext>    output format for a directory of inputs (default pdf)");
+        System.out.println("  --workers <n>     number of jobs converted at once (default: number of processors)");
+        System.out.println("  --threads <n>     worker threads transforming the pages of each job (default 1)");
+        System.out.println("  --pages <range>   pages to convert from each input, e.g. 1-10,15,20- (default all)");
+        System.out.println("  --direct-output   write each output as its pages are produced");
+        System.out.println("  --timeout <s>     abort a job that takes longer than this");
+        System.out.println("  --stall-timeout <s>  abort a job that makes no progress for this long");
+        System.out.println("  --metrics-file <path>  write stage metrics on completion, as Prometheus text (.prom, .txt) or JSON");
+    }
+
+    public static void main(String[] args) {
+        try {
+            var settings = new ProgressMonitoring.ConverterParams();
+            String manifest = null;
+            List<String> directories = new ArrayList<>();
+            String format = "pdf";
+            String metricsFile = null;
+            int workers = Runtime.getRuntime().availableProcessors();
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--manifest" -> manifest = args[++i];
+                    case "--format" -> format = args[++i];
+                    case "--workers" -> workers = Integer.parseInt(args[++i]);
+                    case "--threads" -> settings.workerThreads = Integer.parseInt(args[++i]);
+                    case "--pages" -> settings.pages = ProgressMonitoring.PageRange.parse(args[++i]);
+                    case "--direct-output" -> settings.directOutput = true;
+                    case "--timeout" -> settings.timeBudgetMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    case "--stall-timeout" -> settings.stallTimeoutMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    case "--metrics-file" -> metricsFile = args[++i];
+                    default -> directories.add(args[i]);
+                }
+            }
+
+            List<Job> jobs;
+            if (manifest != null && directories.isEmpty()) {
+                jobs = jobsFromManifest(Path.of(manifest));
+            } else if (manifest == null && directories.size() == 2) {
+                Path outputDir = Files.createDirectories(Path.of(directories.get(1)));
+                jobs = jobsFromDirectory(Path.of(directories.get(0)), outputDir, format);
+            } else {
+                usage();
+                System.exit(1);
+                return;
+            }
+
+            // Mako is created and initialised once for the whole batch
+            IJawsMako jawsMako = IJawsMako.create();
+            IJawsMako.enableAllFeatures(jawsMako);
+
+            ConversionMetrics metrics = new ConversionMetrics();
+            ExecutorService pool = Executors.newFixedThreadPool(workers, Workers.daemonThreads("batch-worker"));
+            ThreadLocal<Worker> worker = ThreadLocal.withInitial(() -> new Worker(jawsMako, settings.copySettings(), metrics));
+            ConversionWatchdog watchdog = new ConversionWatchdog(250);
+
+            long batchStart = System.nanoTime();
+            CompletionService<JobResult> completion = new ExecutorCompletionService<>(pool);
+            for (Job job : jobs) {
+                completion.submit(() -> {
+                    Worker w = worker.get();
+                    JobResult result = w.run(jawsMako, job, watchdog);
+                    if (w.spent)
+                        worker.remove();    // the next job on this thread gets a fresh worker
+                    return result;
+                });
+            }
+
+            // Report each job as it finishes
+            long[] latencies = new long[jobs.size()];
+            int failed = 0;
+            int aborted = 0;
+            long pages = 0;
+            for (int i = 0; i < jobs.size(); i++) {
+                JobResult result = completion.take().get();
+                latencies[i] = result.nanos();
+                if (result.abortReason() != null) {
+                    aborted++;
+                    System.out.printf("ABORTED %s: it %s%n", result.job().inputPath(), result.abortReason());
+                } else if (result.error() != null) {
+                    failed++;
+                    System.out.printf("FAILED %s: %s%n", result.job().inputPath(), result.error().getMessage());
+                } else {
+                    pages += result.pageCount();
+                    System.out.printf("%8.1f ms  %4d pages  %s -> %s%n", result.nanos() / 1e6, result.pageCount(),
+                            result.job().inputPath(), result.job().outputPath());
+                }
+            }
+            double seconds = (System.nanoTime() - batchStart) / 1e9;
+            pool.shutdown();
+            watchdog.close();
+
+            Arrays.sort(latencies);
+            System.out.printf("%d jobs (%d failed, %d aborted) in %.2f s: %.2f jobs/s, %.1f pages/s%n",
+                    jobs.size(), failed, aborted, seconds, jobs.size() / seconds, pages / seconds);
+            if (latencies.length > 0)
+                System.out.printf("job latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                        percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.99) / 1e6,
+                        latencies[latencies.length - 1] / 1e6);
+
+            metrics.printSummary(System.out);
+            if (metricsFile != null)
+                metrics.writeTo(Path.of(metricsFile));
+        } catch (Exception ex) {
+            System.out.println("Exception: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Nearest-rank percentile of sorted values
+    static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+}
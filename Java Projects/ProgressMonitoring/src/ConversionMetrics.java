@@ -0,0 +1,183 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="ConversionMetrics.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Lock-free MetricsSink with per-stage tick counters and latency histograms,
+ *  exported as JSON or Prometheus text to a file or a local HTTP endpoint.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ConversionMetrics implements MetricsSink {
+    private static final MetricsSink.Stage[] STAGES = MetricsSink.Stage.values();
+
+    private final LongAdder[] ticks = new LongAdder[STAGES.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[STAGES.length];
+    private final LongAdder nodesWritten = new LongAdder();
+
+    public ConversionMetrics() {
+        for (int i = 0; i < STAGES.length; i++) {
+            ticks[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void tick(MetricsSink.Stage stage) {
+        ticks[stage.ordinal()].increment();
+    }
+
+    @Override
+    public void recordLatency(MetricsSink.Stage stage, long nanos) {
+        latencies[stage.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void nodesWritten(int nodeCount) {
+        nodesWritten.add(nodeCount);
+    }
+
+    /**
+     * Histogram with power-of-two microsecond buckets, from 1us up to about 67 seconds.
+     * Recording is a handful of atomic adds with no locking or allocation.
+     */
+    static class LatencyHistogram {
+        static final int BUCKETS = 28;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder count = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(nanos, 0) / 1000;
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+            counts.incrementAndGet(bucket);
+            totalNanos.add(nanos);
+            count.increment();
+        }
+
+        // Upper bound of a bucket in seconds; the last bucket is unbounded
+        static double upperBoundSeconds(int bucket) {
+            return (1L << bucket) / 1e6;
+        }
+
+        // Approximate quantile, reported as the upper bound of the bucket that contains it
+        double quantileSeconds(double q) {
+            long total = count.sum();
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return upperBoundSeconds(i);
+            }
+            return upperBoundSeconds(BUCKETS - 1);
+        }
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\n  \"nodesWritten\": ").append(nodesWritten.sum()).append(",\n  \"stages\": {");
+        for (int i = 0; i < STAGES.length; i++) {
+            LatencyHistogram h = latencies[i];
+            long count = h.count.sum();
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append(String.format(Locale.ROOT,
+                    "    \"%s\": { \"ticks\": %d, \"count\": %d, \"totalSeconds\": %.6f, \"p50Seconds\": %.6f, \"p99Seconds\": %.6f, \"buckets\": [",
+                    STAGES[i].label, ticks[i].sum(), count, h.totalNanos.sum() / 1e9,
+                    h.quantileSeconds(0.5), h.quantileSeconds(0.99)));
+            for (int b = 0; b < LatencyHistogram.BUCKETS; b++)
+                sb.append(b == 0 ? "" : ", ").append(h.counts.get(b));
+            sb.append("] }");
+        }
+        return sb.append("\n  }\n}\n").toString();
+    }
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# TYPE mako_progress_ticks_total counter\n");
+        for (int i = 0; i < STAGES.length; i++)
+            sb.append("mako_progress_ticks_total{stage=\"").append(STAGES[i].label).append("\"} ").append(ticks[i].sum()).append('\n');
+
+        sb.append("# TYPE mako_nodes_written_total counter\n");
+        sb.append("mako_nodes_written_total ").append(nodesWritten.sum()).append('\n');
+
+        sb.append("# TYPE mako_stage_latency_seconds histogram\n");
+        for (int i = 0; i < STAGES.length; i++) {
+            LatencyHistogram h = latencies[i];
+            String stage = STAGES[i].label;
+            long cumulative = 0;
+            for (int b = 0; b < LatencyHistogram.BUCKETS - 1; b++) {
+                cumulative += h.counts.get(b);
+                sb.append(String.format(Locale.ROOT, "mako_stage_latency_seconds_bucket{stage=\"%s\",le=\"%g\"} %d%n",
+                        stage, LatencyHistogram.upperBoundSeconds(b), cumulative));
+            }
+            long count = h.count.sum();
+            sb.append(String.format(Locale.ROOT, "mako_stage_latency_seconds_bucket{stage=\"%s\",le=\"+Inf\"} %d%n", stage, count));
+            sb.append(String.format(Locale.ROOT, "mako_stage_latency_seconds_sum{stage=\"%s\"} %.9f%n", stage, h.totalNanos.sum() / 1e9));
+            sb.append(String.format(Locale.ROOT, "mako_stage_latency_seconds_count{stage=\"%s\"} %d%n", stage, count));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the metrics to a file; a .prom or .txt extension selects Prometheus text, anything else JSON.
+     */
+    public void writeTo(Path path) throws IOException {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        String text = name.endsWith(".prom") || name.endsWith(".txt") ? toPrometheus() : toJson();
+        Files.writeString(path, text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serve the metrics on the loopback interface: /metrics as Prometheus text and
+     * /metrics.json as JSON. Stop the returned server when it is no longer needed.
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> respond(exchange, "text/plain; version=0.0.4", toPrometheus()));
+        server.createContext("/metrics.json", exchange -> respond(exchange, "application/json", toJson()));
+        server.setExecutor(Executors.newSingleThreadExecutor(Workers.daemonThreads("metrics-http")));
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * One line per stage, printed once the conversion is complete.
+     */
+    public void printSummary(PrintStream out) {
+        for (int i = 0; i < STAGES.length; i++) {
+            LatencyHistogram h = latencies[i];
+            out.printf("%-16s : %6d ticks, %6d calls, %8.3f s total, p99 <= %.3f s%n",
+                    STAGES[i].label, ticks[i].sum(), h.count.sum(), h.totalNanos.sum() / 1e9, h.quantileSeconds(0.99));
+        }
+        out.printf("%-16s : %d%n", "nodes written", nodesWritten.sum());
+    }
+}
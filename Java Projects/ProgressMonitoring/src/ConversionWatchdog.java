@@ -0,0 +1,123 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="ConversionWatchdog.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Watches running conversions and signals their IAbort when a job overruns
+ *  its time budget or stops making progress.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ConversionWatchdog implements AutoCloseable {
+
+    /**
+     * The time of the most recent sign of progress in a conversion: a progress tick,
+     * a page read or a page written.
+     */
+    public static class ProgressClock {
+        private volatile long lastProgressNanos = System.nanoTime();
+
+        public void touch() {
+            lastProgressNanos = System.nanoTime();
+        }
+
+        public long lastProgressNanos() {
+            return lastProgressNanos;
+        }
+    }
+
+    /**
+     * One watched conversion. Close it once the conversion has finished, however it finished.
+     * Once it is closed it no longer fires, so its abort reason is settled.
+     */
+    public class Watch implements AutoCloseable {
+        private final String name;
+        private final IAbort abort;
+        private final ProgressClock clock;
+        private final long deadlineNanos;
+        private final long stallNanos;
+        private volatile String abortReason;
+        private boolean closed;
+
+        private Watch(String name, IAbort abort, ProgressClock clock, long budgetMillis, long stallMillis) {
+            this.name = name;
+            this.abort = abort;
+            this.clock = clock;
+            this.deadlineNanos = budgetMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis) : Long.MAX_VALUE;
+            this.stallNanos = stallMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(stallMillis) : Long.MAX_VALUE;
+            clock.touch();
+        }
+
+        /** Why the conversion was aborted, or null if the watchdog has not aborted it. */
+        public String abortReason() {
+            return abortReason;
+        }
+
+        private synchronized void check(long now) {
+            if (closed || abortReason != null)
+                return;
+
+            if (now - deadlineNanos > 0)
+                fire("exceeded its time budget");
+            else if (now - clock.lastProgressNanos() > stallNanos)
+                fire(String.format("made no progress for %d ms", TimeUnit.NANOSECONDS.toMillis(now - clock.lastProgressNanos())));
+        }
+
+        private void fire(String reason) {
+            abortReason = reason;
+            System.out.printf("watchdog: aborting %s, it %s%n", name, reason);
+            abort.signalAbort();
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            watches.remove(this);
+        }
+    }
+
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param checkIntervalMillis how often running conversions are checked
+     */
+    public ConversionWatchdog(long checkIntervalMillis) {
+        timer = Executors.newSingleThreadScheduledExecutor(Workers.daemonThreads("conversion-watchdog"));
+        timer.scheduleAtFixedRate(this::checkAll, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start watching a conversion.
+     *
+     * @param name         identifies the conversion in messages
+     * @param abort        the IAbort wired into the conversion's progress monitors
+     * @param clock        updated by the conversion as it makes progress
+     * @param budgetMillis the most time the conversion may take, or 0 for no limit
+     * @param stallMillis  the longest time allowed without progress, or 0 for no limit
+     */
+    public Watch watch(String name, IAbort abort, ProgressClock clock, long budgetMillis, long stallMillis) {
+        Watch watch = new Watch(name, abort, clock, budgetMillis, stallMillis);
+        watches.add(watch);
+        return watch;
+    }
+
+    private void checkAll() {
+        long now = System.nanoTime();
+        for (Watch watch : watches)
+            watch.check(now);
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,67 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="MemoryReport.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Reports the peak Java heap and process memory seen during a conversion,
+ *  to show that memory use does not grow with the number of pages.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MemoryReport {
+    private final long startNanos;
+
+    private MemoryReport() {
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Reset the JVM's peak usage counters and start timing.
+     */
+    public static MemoryReport start() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+        return new MemoryReport();
+    }
+
+    public void print(PrintStream out, int pageCount) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        // Summing the per-pool peaks gives an upper bound on the peak heap in use
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        out.printf("pages written    : %d in %.2f s (%.1f pages/s)%n", pageCount, seconds, pageCount / seconds);
+        out.printf("peak Java heap   : %.1f MB%n", peakHeap / 1048576.0);
+
+        // Mako's page data lives in native memory, which only the process high-water mark shows
+        long peakResident = peakResidentBytes();
+        if (peakResident > 0)
+            out.printf("peak process RSS : %.1f MB%n", peakResident / 1048576.0);
+    }
+
+    // VmHWM from /proc/self/status on Linux, or -1 where it is not available
+    private static long peakResidentBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,52 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="MetricsSink.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Receives progress ticks and stage timings from a conversion. Implementations
+ *  are called from Mako's conversion threads, so they must be cheap and must
+ *  not block.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+public interface MetricsSink {
+
+    enum Stage {
+        INPUT("input"),
+        CUSTOM_TRANSFORM("custom_transform"),
+        COLOR_CONVERT("color_convert"),
+        TRANSFORM_CHAIN("transform_chain"),
+        PAGE_WRITE("page_write");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    /** A progress tick from the IProgressMonitor attached to a stage. */
+    void tick(Stage stage);
+
+    /** The time taken by one call into a stage, such as transforming or writing a page. */
+    void recordLatency(Stage stage, long nanos);
+
+    /** The number of node write events seen while writing one page. */
+    void nodesWritten(int nodeCount);
+
+    /** A sink that discards everything. */
+    MetricsSink NONE = new MetricsSink() {
+        @Override
+        public void tick(Stage stage) {
+        }
+
+        @Override
+        public void recordLatency(Stage stage, long nanos) {
+        }
+
+        @Override
+        public void nodesWritten(int nodeCount) {
+        }
+    };
+}
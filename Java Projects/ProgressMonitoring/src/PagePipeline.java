@@ -0,0 +1,93 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="PagePipeline.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Bounded producer/consumer pipeline that transforms pages on a pool of
+ *  worker threads and hands them to a single writer in page order.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class PagePipeline implements AutoCloseable {
+    private final ExecutorService workers;
+    private final TransformPool transforms;
+    private final Consumer<IPage> pageWriter;
+    private final int maxPagesInFlight;
+
+    // Pages in submission order; the head is always the next page to be written
+    private final ArrayDeque<Future<IPage>> inFlight = new ArrayDeque<>();
+
+    /**
+     * @param workerThreads     number of threads running the page transforms
+     * @param maxPagesInFlight  pages that may be queued or transformed but not yet written;
+     *                          0 or less selects twice the number of workers
+     * @param transforms        pool that provides each worker with its own transforms
+     * @param pageWriter        called on the submitting thread, in page order
+     */
+    public PagePipeline(int workerThreads,
+                        int maxPagesInFlight,
+                        TransformPool transforms,
+                        Consumer<IPage> pageWriter) {
+        this.workers = Executors.newFixedThreadPool(workerThreads, Workers.daemonThreads("page-transform"));
+        this.transforms = transforms;
+        this.pageWriter = pageWriter;
+        this.maxPagesInFlight = maxPagesInFlight > 0 ? Math.max(maxPagesInFlight, workerThreads) : 2 * workerThreads;
+    }
+
+    /**
+     * Queue a page for transformation. Once the pipeline is full this writes pages
+     * from the head of the queue until there is room, so memory stays bounded.
+     */
+    public void submit(IPage page) {
+        while (inFlight.size() >= maxPagesInFlight)
+            writeNext();
+
+        inFlight.addLast(workers.submit(() -> {
+            ProgressMonitoring.PageTransforms pageTransforms = transforms.acquire();
+            try {
+                pageTransforms.transformPage(page);
+            } finally {
+                transforms.release(pageTransforms);
+            }
+            return page;
+        }));
+    }
+
+    /**
+     * Write every page that has been submitted so far.
+     */
+    public void drain() {
+        while (!inFlight.isEmpty())
+            writeNext();
+    }
+
+    private void writeNext() {
+        Future<IPage> next = inFlight.removeFirst();
+        // Rethrows the worker's failure (including an abort signalled via IAbort) on the writer thread
+        IPage page = Workers.await(next);
+        pageWriter.accept(page);
+    }
+
+    /**
+     * Cancel any pages still in flight and stop the workers.
+     */
+    @Override
+    public void close() {
+        for (Future<IPage> pending : inFlight)
+            pending.cancel(true);
+        inFlight.clear();
+
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -13,7 +13,11 @@
 import com.globalgraphics.JawsMako.jawsmakoIF.*;
 import com.globalgraphics.JawsMako.jawsmakoIF.jawsmakoIF.*;
 import java.io.*;
-import java.util.Stack;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
 
 public class ProgressMonitoring {
 
@@ -25,6 +29,17 @@ public class ProgressMonitoring {
         public IProgressMonitor customTransformProgressMonitor;
         public IProgressMonitor transformProgressMonitor;
         public IProgressMonitor transformChainProgressMonitor;
+        public int workerThreads = 1;
+        public int maxPagesInFlight = 0;    // 0 = twice the number of worker threads
+        public PageRange pages = PageRange.ALL;
+        public boolean directOutput;        // write straight to outputFilePath instead of via the temp store
+        public IOutputStream outputStream;  // optional caller-supplied destination; overrides outputFilePath
+        public boolean memoryReport;
+        public boolean profile;
+        public MetricsSink metrics = MetricsSink.NONE;
+        public ConversionWatchdog.ProgressClock progressClock = new ConversionWatchdog.ProgressClock();
+        public long timeBudgetMillis;       // 0 = no limit
+        public long stallTimeoutMillis;     // 0 = no limit
 
         public void setInputPath(String path) {
             inputFilePath = path;
@@ -36,6 +51,46 @@ public class ProgressMonitoring {
             outputFileFormat = formatFromPath(path);
         }
 
+        /**
+         * Parameters for another conversion with the same settings and progress monitors as this one.
+         */
+        public ConverterParams forJob(String inputPath, String outputPath) {
+            ConverterParams params = copySettings();
+            params.setInputPath(inputPath);
+            params.setOutputPath(outputPath);
+            return params;
+        }
+
+        /**
+         * A copy of everything except the input and output.
+         */
+        public ConverterParams copySettings() {
+            ConverterParams params = new ConverterParams();
+            params.customTransformProgressMonitor = customTransformProgressMonitor;
+            params.transformProgressMonitor = transformProgressMonitor;
+            params.transformChainProgressMonitor = transformChainProgressMonitor;
+            params.workerThreads = workerThreads;
+            params.maxPagesInFlight = maxPagesInFlight;
+            params.pages = pages;
+            params.directOutput = directOutput;
+            params.metrics = metrics;
+            params.progressClock = progressClock;
+            params.timeBudgetMillis = timeBudgetMillis;
+            params.stallTimeoutMillis = stallTimeoutMillis;
+            return params;
+        }
+
+        public static boolean isSupported(String path) {
+            if (path.lastIndexOf('.') < 0)
+                return false;
+            try {
+                formatFromPath(path);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
         private static eFileFormat formatFromPath(String path) {
             String ext = path.substring(path.lastIndexOf('.')).toLowerCase();
             return switch (ext) {
@@ -54,47 +109,141 @@ public class ProgressMonitoring {
         }
     }
 
+    /**
+     * A selection of pages such as "1-10,15,20-". Pages are numbered from 1 and counted
+     * across every document in the assembly.
+     */
+    static class PageRange {
+        static final PageRange ALL = new PageRange(new int[] { 1 }, new int[] { Integer.MAX_VALUE });
+
+        private final int[] firstPages;
+        private final int[] lastPages;
+        private final int lastSelected;
+
+        private PageRange(int[] firstPages, int[] lastPages) {
+            this.firstPages = firstPages;
+            this.lastPages = lastPages;
+            int last = 0;
+            for (int lastPage : lastPages)
+                last = Math.max(last, lastPage);
+            this.lastSelected = last;
+        }
+
+        static PageRange parse(String spec) {
+            String[] parts = spec.split(",");
+            int[] firsts = new int[parts.length];
+            int[] lasts = new int[parts.length];
+
+            for (int i = 0; i < parts.length; i++) {
+                String part = parts[i].trim();
+                int dash = part.indexOf('-');
+                if (dash < 0) {
+                    firsts[i] = lasts[i] = Integer.parseInt(part);
+                } else {
+                    firsts[i] = Integer.parseInt(part.substring(0, dash));
+                    lasts[i] = dash == part.length() - 1 ? Integer.MAX_VALUE : Integer.parseInt(part.substring(dash + 1));
+                }
+                if (firsts[i] < 1 || lasts[i] < firsts[i])
+                    throw new IllegalArgumentException("Invalid page range: " + part);
+            }
+            return new PageRange(firsts, lasts);
+        }
+
+        boolean contains(int pageNumber) {
+            for (int i = 0; i < firstPages.length; i++) {
+                if (pageNumber >= firstPages[i] && pageNumber <= lastPages[i])
+                    return true;
+            }
+            return false;
+        }
+
+        // True once no later page can be selected, so the input need not be read any further
+        boolean isPastEnd(int pageNumber) {
+            return pageNumber > lastSelected;
+        }
+    }
+
     static class ProgressHandler extends IProgressTickIntCallback
     {
-        private final String info;
-        private int tickCount;
+        private final MetricsSink.Stage stage;
+        private final MetricsSink metrics;
+        private final ConversionWatchdog.ProgressClock clock;
         public IProgressTick progressTick;
 
-        public ProgressHandler(String info) {
-            this.info = info;
-            this.tickCount = 0;
+        public ProgressHandler(MetricsSink.Stage stage, MetricsSink metrics, ConversionWatchdog.ProgressClock clock) {
+            this.stage = stage;
+            this.metrics = metrics;
+            this.clock = clock;
 
             // Create callback + tick object
             this.progressTick = IProgressTick.create(getCallbackFunc(), getPriv());
         }
 
+        // Called on the conversion threads, so only count the tick; no console I/O here
         @Override
         public void tick(long currentCount, long maxCount) {
-            tickCount++;
-            System.out.println(info + " : " + tickCount);
+            metrics.tick(stage);
+            clock.touch();
         }
     }
 
+    /**
+     * Profiles the output writer from its progress events. Each event is timestamped with
+     * System.nanoTime, giving the write time of every page and the slowest node subtrees
+     * on it. Open nodes are tracked on primitive stacks, so nothing is allocated per node.
+     * Page profiles are only kept when profiling is requested, so that otherwise memory does
+     * not grow with the page count. Every event also counts as progress for the watchdog, so
+     * a long page that is still being written is not taken for a stall.
+     */
     public static class ProgressEventHandler extends IProgressEventHandlerCallback
     {
+        private static final int SLOWEST_NODES = 5;
+
+        /** The write profile of one page. */
+        public record PageProfile(int pageNumber, long writeNanos, int nodeCount, int maxDepth,
+                                  int[] slowestNodeIds, int[] slowestNodeDepths,
+                                  long[] slowestNodeNanos, long[] slowestNodeSelfNanos) {}
+
         private int m_pageCount;
         private int m_nodeCount;
         private int m_nodeDepth;
-        private final Stack<Integer> m_nodes = new Stack<>();
+        private int m_maxDepth;
+        private long m_pageStart;
+
+        // Stacks of open nodes: id, start time and the time spent in already-closed children
+        private int[] m_nodeIds = new int[64];
+        private long[] m_nodeStarts = new long[64];
+        private long[] m_childNanos = new long[64];
+
+        // Slowest subtrees on the current page, in descending order of time
+        private final int[] m_slowIds = new int[SLOWEST_NODES];
+        private final int[] m_slowDepths = new int[SLOWEST_NODES];
+        private final long[] m_slowNanos = new long[SLOWEST_NODES];
+        private final long[] m_slowSelfNanos = new long[SLOWEST_NODES];
+        private int m_slowCount;
+
+        private final List<PageProfile> m_pages = new ArrayList<>();
+        private final MetricsSink m_metrics;
+        private final ConversionWatchdog.ProgressClock m_clock;
+        private final boolean m_profile;
 
         private IProgressEventHandler progressEventHandler;
 
-        public ProgressEventHandler()
+        public ProgressEventHandler(MetricsSink metrics, ConversionWatchdog.ProgressClock clock, boolean profile)
         {
             m_pageCount = 0;
             m_nodeCount = 0;
             m_nodeDepth = 0;
+            m_metrics = metrics;
+            m_clock = clock;
+            m_profile = profile;
         }
 
         @Override
         public void handleEvent(IProgressEventHandler.Event evt)
         {
-            int id;
+            long now = System.nanoTime();
+            m_clock.touch();
 
             switch (evt)
             {
@@ -102,36 +251,42 @@ public class ProgressMonitoring {
                     m_pageCount++;
                     m_nodeCount = 0;
                     m_nodeDepth = 0;
-                    m_nodes.clear();
-                    System.out.printf("start of page %d%n", m_pageCount);
+                    m_maxDepth = 0;
+                    m_slowCount = 0;
+                    m_pageStart = now;
                     break;
 
                 case eEvtPageWriteEnd:
-                    System.out.printf("end of page %d, got %d node events%n", m_pageCount, m_nodeCount);
+                    m_metrics.nodesWritten(m_nodeCount);
                     if (m_nodeDepth != 0)
-                        System.out.printf("mismatch in node write start/end %d%n", m_nodeDepth);
+                        System.out.printf("page %d: mismatch in node write start/end %d%n", m_pageCount, m_nodeDepth);
+                    if (m_profile)
+                        m_pages.add(new PageProfile(m_pageCount, now - m_pageStart, m_nodeCount, m_maxDepth,
+                                Arrays.copyOf(m_slowIds, m_slowCount), Arrays.copyOf(m_slowDepths, m_slowCount),
+                                Arrays.copyOf(m_slowNanos, m_slowCount), Arrays.copyOf(m_slowSelfNanos, m_slowCount)));
                     break;
 
                 case eEvtNodeWriteStart:
-                    id = ++m_nodeCount;
+                    if (m_nodeDepth == m_nodeIds.length)
+                        growStacks();
+                    m_nodeIds[m_nodeDepth] = ++m_nodeCount;
+                    m_nodeStarts[m_nodeDepth] = now;
+                    m_childNanos[m_nodeDepth] = 0;
                     m_nodeDepth++;
-                    m_nodes.push(id);
-                    if (id % 500 == 0)
-                        System.out.printf("start of node %d%n", id);
+                    m_maxDepth = Math.max(m_maxDepth, m_nodeDepth);
                     break;
 
                 case eEvtNodeWriteEnd:
-                    m_nodeDepth--;
-                    if (m_nodes.isEmpty())
+                    if (m_nodeDepth == 0)
                     {
                         System.out.println("mismatch, empty nodes");
+                        break;
                     }
-                    else
-                    {
-                        id = m_nodes.pop();
-                        if (id % 500 == 0)
-                            System.out.printf("end of node %d%n", id);
-                    }
+                    m_nodeDepth--;
+                    long nanos = now - m_nodeStarts[m_nodeDepth];
+                    if (m_nodeDepth > 0)
+                        m_childNanos[m_nodeDepth - 1] += nanos;
+                    recordNode(m_nodeIds[m_nodeDepth], m_nodeDepth + 1, nanos, nanos - m_childNanos[m_nodeDepth]);
                     break;
 
                 default:
@@ -139,9 +294,65 @@ public class ProgressMonitoring {
             }
         }
 
-        public static ProgressEventHandler create()
+        // Only reached when a page nests deeper than any before it
+        private void growStacks()
+        {
+            int size = m_nodeIds.length * 2;
+            m_nodeIds = Arrays.copyOf(m_nodeIds, size);
+            m_nodeStarts = Arrays.copyOf(m_nodeStarts, size);
+            m_childNanos = Arrays.copyOf(m_childNanos, size);
+        }
+
+        // Insertion into the fixed-size table of the slowest subtrees on this page
+        private void recordNode(int id, int depth, long nanos, long selfNanos)
+        {
+            if (m_slowCount == SLOWEST_NODES && nanos <= m_slowNanos[SLOWEST_NODES - 1])
+                return;
+
+            int i = Math.min(m_slowCount, SLOWEST_NODES - 1);
+            while (i > 0 && m_slowNanos[i - 1] < nanos)
+            {
+                m_slowIds[i] = m_slowIds[i - 1];
+                m_slowDepths[i] = m_slowDepths[i - 1];
+                m_slowNanos[i] = m_slowNanos[i - 1];
+                m_slowSelfNanos[i] = m_slowSelfNanos[i - 1];
+                i--;
+            }
+            m_slowIds[i] = id;
+            m_slowDepths[i] = depth;
+            m_slowNanos[i] = nanos;
+            m_slowSelfNanos[i] = selfNanos;
+            m_slowCount = Math.min(m_slowCount + 1, SLOWEST_NODES);
+        }
+
+        public List<PageProfile> getPageProfiles()
         {
-            ProgressEventHandler handler = new ProgressEventHandler();
+            return m_pages;
+        }
+
+        /**
+         * Print the write time of each page and the slowest node subtrees on it.
+         * Nodes are identified by their order of writing on the page, from 1.
+         */
+        public void printReport(PrintStream out)
+        {
+            for (PageProfile page : m_pages)
+            {
+                out.printf("page %d: %.3f ms, %d nodes, max depth %d%n",
+                        page.pageNumber(), page.writeNanos() / 1e6, page.nodeCount(), page.maxDepth());
+                for (int i = 0; i < page.slowestNodeIds().length; i++)
+                    out.printf("    node %d (depth %d): %.3f ms, %.3f ms excluding children%n",
+                            page.slowestNodeIds()[i], page.slowestNodeDepths()[i],
+                            page.slowestNodeNanos()[i] / 1e6, page.slowestNodeSelfNanos()[i] / 1e6);
+            }
+        }
+
+        /**
+         * @param profile keep the profile of every page for {@link #printReport}
+         */
+        public static ProgressEventHandler create(MetricsSink metrics, ConversionWatchdog.ProgressClock clock, boolean profile)
+        {
+            ProgressEventHandler handler = new ProgressEventHandler(metrics, clock, profile);
             handler.progressEventHandler = IProgressEventHandler.create(
                     handler.getCallbackFunc(),
                     handler.getPriv());
@@ -153,66 +364,208 @@ public class ProgressMonitoring {
             return progressEventHandler;
         }
     }
+
     static class EmptyTransformImplementation extends ICustomTransform.IImplementation {
         private IJawsMako jawsMako;
         public EmptyTransformImplementation(IJawsMako jm) { jawsMako = jm; }
     }
 
-    static void outputIterateByPage(ConverterParams cvtParams, IJawsMako jawsMako, IDocumentAssembly assembly, IOutput output) {
-        var tempStore = jawsMako.getTempStore();
-        var pair = tempStore.createTemporaryReaderWriterPair();
-        IRAInputStream reader = pair.getInputStream();
-        IRAOutputStream writer = pair.getOutputStream();
+    /**
+     * The transforms applied to each page before it is written. A set is used by one thread
+     * at a time and is kept in a TransformPool so it can be reused across documents and jobs.
+     */
+    static class PageTransforms {
+        private final ICustomTransform customTransform;
+        private final IColorConverterTransform ccTransform;
+        private final ITransformChain transformChain;
+        private final MetricsSink metrics;
+
+        PageTransforms(ConverterParams cvtParams, IJawsMako jawsMako) {
+            metrics = cvtParams.metrics;
+
+            var customImpl = new EmptyTransformImplementation(jawsMako);
+            customTransform = ICustomTransform.create(jawsMako, customImpl);
+            customTransform.setProgressMonitor(cvtParams.customTransformProgressMonitor);
+
+            ccTransform = IColorConverterTransform.create(jawsMako);
+            var deviceCmyk = IDOMColorSpaceDeviceCMYK.create(jawsMako.getFactory());
+            ccTransform.setTargetSpace(deviceCmyk);
+            ccTransform.setProgressMonitor(cvtParams.transformProgressMonitor);
+
+            // The color conversion is applied on its own so that it is timed as a stage of its own.
+            // A second converter with no target space in the chain only repeated the work, so the
+            // chain starts empty; further transforms are pushed onto it.
+            transformChain = ITransformChain.create(jawsMako, cvtParams.transformChainProgressMonitor);
+        }
+
+        void transformPage(IPage page) {
+            IDOMFixedPage fixedPage = page.getContent();
+
+            long start = System.nanoTime();
+            customTransform.transformPage(page);
+            long customDone = System.nanoTime();
+
+            boolean[] changed = { false };
+            ccTransform.transform(fixedPage, changed);
+            long colorDone = System.nanoTime();
 
-        IOutputWriter writerHandle = output.openWriter(assembly, writer);
+            transformChain.transform(fixedPage, changed);
+            long chainDone = System.nanoTime();
 
-        // Create transforms
-        var customImpl = new EmptyTransformImplementation(jawsMako);
-        var customTransform = ICustomTransform.create(jawsMako, customImpl);
-        customTransform.setProgressMonitor(cvtParams.customTransformProgressMonitor);
+            metrics.recordLatency(MetricsSink.Stage.CUSTOM_TRANSFORM, customDone - start);
+            metrics.recordLatency(MetricsSink.Stage.COLOR_CONVERT, colorDone - customDone);
+            metrics.recordLatency(MetricsSink.Stage.TRANSFORM_CHAIN, chainDone - colorDone);
+        }
+    }
 
-        var ccTransform = IColorConverterTransform.create(jawsMako);
-        var deviceCmyk = IDOMColorSpaceDeviceCMYK.create(jawsMako.getFactory());
-        ccTransform.setTargetSpace(deviceCmyk);
-        ccTransform.setProgressMonitor(cvtParams.transformProgressMonitor);
+    /**
+     * Transform and write every selected page, returning the number of pages written.
+     */
+    static int outputIterateByPage(ConverterParams cvtParams, IJawsMako jawsMako, IDocumentAssembly assembly, IOutput output,
+                                   TransformPool transformPool) {
+        IOutputStream destination = cvtParams.outputStream;
+        if (destination == null && cvtParams.directOutput)
+            destination = IOutputStream.createToFile(jawsMako.getFactory(), cvtParams.outputFilePath);
+
+        IRAInputStream reader = null;
+        IOutputWriter writerHandle;
+        if (destination != null) {
+            // Output reaches the destination as each page is written, with no copy at the end
+            writerHandle = output.openWriter(assembly, destination);
+        } else {
+            var tempStore = jawsMako.getTempStore();
+            var pair = tempStore.createTemporaryReaderWriterPair();
+            reader = pair.getInputStream();
+            writerHandle = output.openWriter(assembly, pair.getOutputStream());
+        }
+
+        int[] pagesWritten = { 0 };
+        Consumer<IPage> pageWriter = page -> {
+            long start = System.nanoTime();
+            writerHandle.writePage(page);
+            cvtParams.metrics.recordLatency(MetricsSink.Stage.PAGE_WRITE, System.nanoTime() - start);
+            cvtParams.progressClock.touch();
+
+            // Release each page as soon as it is written so memory does not grow with the page count
+            page.release();
+            pagesWritten[0]++;
+        };
+
+        if (cvtParams.workerThreads > 1) {
+            // Transform pages on a pool of workers, writing them in page order on this thread
+            try (PagePipeline pipeline = new PagePipeline(
+                    cvtParams.workerThreads,
+                    cvtParams.maxPagesInFlight,
+                    transformPool,
+                    pageWriter)) {
+                // All pages of a document must be written before it is ended
+                iteratePages(cvtParams, assembly, writerHandle, pipeline::submit, pipeline::drain);
+            }
+        } else {
+            PageTransforms transforms = transformPool.acquire();
+            try {
+                iteratePages(cvtParams, assembly, writerHandle, page -> {
+                    transforms.transformPage(page);
+                    pageWriter.accept(page);
+                }, () -> {});
+            } finally {
+                transformPool.release(transforms);
+            }
+        }
+
+        writerHandle.finish();
+        if (reader != null)
+            IOutputStream.copy(reader, IOutputStream.createToFile(jawsMako.getFactory(), cvtParams.outputFilePath));
+        return pagesWritten[0];
+    }
 
-        var transformChain = ITransformChain.create(jawsMako, cvtParams.transformChainProgressMonitor);
-        var colorConverter = IColorConverterTransform.create(jawsMako);
-        transformChain.pushTransform(colorConverter);
+    /**
+     * Walk the selected pages of every document in the assembly. Pages are loaded one at a
+     * time as they are reached, so streaming inputs are never read further than necessary.
+     * A document is begun at its first selected page, so documents with none are left out.
+     */
+    static void iteratePages(ConverterParams cvtParams, IDocumentAssembly assembly, IOutputWriter writerHandle,
+                             Consumer<IPage> pageHandler, Runnable endOfDocument) {
+        int pageNumber = 0;
 
-        for (int docNo = 0; assembly.documentExists(docNo); docNo++) {
+        for (int docNo = 0; assembly.documentExists(docNo) && !cvtParams.pages.isPastEnd(pageNumber + 1); docNo++) {
             IDocument document = assembly.getDocument(docNo);
-            writerHandle.beginDocument(document);
+            boolean begun = false;
 
-            // First page only
-            for (int pageIndex = 0; pageIndex < 1; pageIndex++) {
-                IPage page = document.getPage(pageIndex);
-                IDOMFixedPage fixedPage = page.getContent();
+            for (int pageIndex = 0; document.pageExists(pageIndex); pageIndex++) {
+                pageNumber++;
+                if (cvtParams.pages.isPastEnd(pageNumber))
+                    break;
+                if (cvtParams.pages.contains(pageNumber)) {
+                    if (!begun) {
+                        writerHandle.beginDocument(document);
+                        begun = true;
+                    }
 
-                customTransform.transformPage(page);
+                    // Streaming inputs do most of their parsing as each page is fetched
+                    long start = System.nanoTime();
+                    IPage page = document.getPage(pageIndex);
+                    cvtParams.metrics.recordLatency(MetricsSink.Stage.INPUT, System.nanoTime() - start);
+                    cvtParams.progressClock.touch();
 
-                boolean[] changed = { false };
-                ccTransform.transform(fixedPage, changed);
-                transformChain.transform(fixedPage, changed);
+                    pageHandler.accept(page);
+                }
+            }
 
-                writerHandle.writePage(page);
-                page.release();
+            if (begun) {
+                endOfDocument.run();
+                writerHandle.endDocument();
             }
+        }
+    }
 
-            writerHandle.endDocument();
+    /**
+     * Convert the same input repeatedly, first building the transforms for every job and then
+     * reusing them from a pool, and report the jobs per second achieved by each.
+     */
+    static void runBenchmark(ConverterParams cvtParams, IJawsMako jawsMako, IInput input, IOutput output, int jobs) {
+        // Warm up both paths before timing
+        TransformPool pool = new TransformPool(() -> new PageTransforms(cvtParams, jawsMako));
+        outputIterateByPage(cvtParams, jawsMako, input.open(cvtParams.inputFilePath), output,
+                new TransformPool(() -> new PageTransforms(cvtParams, jawsMako)));
+        outputIterateByPage(cvtParams, jawsMako, input.open(cvtParams.inputFilePath), output, pool);
+
+        long start = System.nanoTime();
+        for (int job = 0; job < jobs; job++) {
+            TransformPool perJob = new TransformPool(() -> new PageTransforms(cvtParams, jawsMako));
+            outputIterateByPage(cvtParams, jawsMako, input.open(cvtParams.inputFilePath), output, perJob);
         }
+        double perJobSeconds = (System.nanoTime() - start) / 1e9;
 
-        writerHandle.finish();
-        IOutputStream.copy(reader, IOutputStream.createToFile(jawsMako.getFactory(), cvtParams.outputFilePath));
+        start = System.nanoTime();
+        for (int job = 0; job < jobs; job++)
+            outputIterateByPage(cvtParams, jawsMako, input.open(cvtParams.inputFilePath), output, pool);
+        double pooledSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("per-job transforms : %d jobs in %.2f s, %.1f jobs/s%n", jobs, perJobSeconds, jobs / perJobSeconds);
+        System.out.printf("pooled transforms  : %d jobs in %.2f s, %.1f jobs/s (%d transform sets built)%n",
+                jobs, pooledSeconds, jobs / pooledSeconds, pool.created());
+        System.out.printf("speed-up           : %.2fx%n", perJobSeconds / pooledSeconds);
     }
 
     static void usage(String progName) {
-        System.out.println(progName + " <input> <output>");
+        System.out.println(progName + " <input> <output> [options]");
+        System.out.println("  --threads <n>     number of worker threads transforming pages (default 1)");
+        System.out.println("  --inflight <n>    maximum number of pages held in the pipeline (default 2 x threads)");
+        System.out.println("  --pages <range>   pages to convert, numbered from 1, e.g. 1-10,15,20- (default all)");
+        System.out.println("  --direct-output   write to <output> as pages are produced rather than copying from the temp store");
+        System.out.println("  --timeout <s>     abort the conversion if it takes longer than this");
+        System.out.println("  --stall-timeout <s>  abort the conversion if it makes no progress for this long");
+        System.out.println("  --memory-report   report peak memory use once the conversion is complete");
+        System.out.println("  --benchmark <jobs>  time <jobs> conversions with per-job and with pooled transforms");
+        System.out.println("  --profile         report the write time of each page and its slowest node subtrees");
+        System.out.println("  --metrics-file <path>  write stage metrics on completion, as Prometheus text (.prom, .txt) or JSON");
+        System.out.println("  --metrics-port <port>  serve live metrics on http://localhost:<port>/metrics and /metrics.json");
     }
 
     public static void main(String[] args) {
         try {
-            if (args.length != 2) {
+            if (args.length < 2) {
                 usage("ProgressMonitoring");
                 System.exit(1);
             }
@@ -221,16 +574,44 @@ public class ProgressMonitoring {
             cvtParams.setInputPath(args[0]);
             cvtParams.setOutputPath(args[1]);
 
+            String metricsFile = null;
+            int metricsPort = 0;
+            int benchmarkJobs = 0;
+
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads" -> cvtParams.workerThreads = Integer.parseInt(args[++i]);
+                    case "--inflight" -> cvtParams.maxPagesInFlight = Integer.parseInt(args[++i]);
+                    case "--pages" -> cvtParams.pages = PageRange.parse(args[++i]);
+                    case "--direct-output" -> cvtParams.directOutput = true;
+                    case "--timeout" -> cvtParams.timeBudgetMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    case "--stall-timeout" -> cvtParams.stallTimeoutMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    case "--memory-report" -> cvtParams.memoryReport = true;
+                    case "--benchmark" -> benchmarkJobs = Integer.parseInt(args[++i]);
+                    case "--profile" -> cvtParams.profile = true;
+                    case "--metrics-file" -> metricsFile = args[++i];
+                    case "--metrics-port" -> metricsPort = Integer.parseInt(args[++i]);
+                    default -> {
+                        usage("ProgressMonitoring");
+                        System.exit(1);
+                    }
+                }
+            }
+
             IJawsMako jawsMako = IJawsMako.create();
             IJawsMako.enableAllFeatures(jawsMako);
 
-            ProgressHandler inputHandler = new ProgressHandler("input");
-            ProgressHandler customHandler = new ProgressHandler("customtransform");
-            ProgressHandler transformHandler = new ProgressHandler("transform");
-            ProgressHandler chainHandler = new ProgressHandler("transformchain");
+            ConversionMetrics metrics = new ConversionMetrics();
+            cvtParams.metrics = metrics;
+            var metricsServer = metricsPort > 0 ? metrics.serve(metricsPort) : null;
+
+            ProgressHandler inputHandler = new ProgressHandler(MetricsSink.Stage.INPUT, metrics, cvtParams.progressClock);
+            ProgressHandler customHandler = new ProgressHandler(MetricsSink.Stage.CUSTOM_TRANSFORM, metrics, cvtParams.progressClock);
+            ProgressHandler transformHandler = new ProgressHandler(MetricsSink.Stage.COLOR_CONVERT, metrics, cvtParams.progressClock);
+            ProgressHandler chainHandler = new ProgressHandler(MetricsSink.Stage.TRANSFORM_CHAIN, metrics, cvtParams.progressClock);
 
             // Use a ProgressEventHandler for the output to get more detailed information
-            ProgressEventHandler outputHandler = ProgressEventHandler.create();
+            ProgressEventHandler outputHandler = ProgressEventHandler.create(metrics, cvtParams.progressClock, cvtParams.profile);
 
             IAbort abort = IAbort.create();
             cvtParams.customTransformProgressMonitor = IProgressMonitor.create(customHandler.progressTick, abort);
@@ -243,9 +624,48 @@ public class ProgressMonitoring {
             IProgressMonitor outputProgressMonitor = IProgressMonitor.create(abort);
             outputProgressMonitor.setProgressEventHandler(outputHandler.getProgressEventHandler());
             IOutput output = IOutput.create(jawsMako, cvtParams.outputFileFormat, outputProgressMonitor);
-            IDocumentAssembly assembly = input.open(cvtParams.inputFilePath);
 
-            outputIterateByPage(cvtParams, jawsMako, assembly, output);
+            if (benchmarkJobs > 0) {
+                runBenchmark(cvtParams, jawsMako, input, output, benchmarkJobs);
+                // The server's dispatcher thread would otherwise keep the JVM running
+                if (metricsServer != null)
+                    metricsServer.stop(0);
+                return;
+            }
+
+            MemoryReport memoryReport = cvtParams.memoryReport ? MemoryReport.start() : null;
+
+            // The watchdog signals the IAbort above if the conversion overruns or stalls
+            int pageCount;
+            try (ConversionWatchdog watchdog = new ConversionWatchdog(250);
+                 ConversionWatchdog.Watch watch = watchdog.watch(cvtParams.inputFilePath, abort, cvtParams.progressClock,
+                         cvtParams.timeBudgetMillis, cvtParams.stallTimeoutMillis)) {
+                try {
+                    long openStart = System.nanoTime();
+                    IDocumentAssembly assembly = input.open(cvtParams.inputFilePath);
+                    metrics.recordLatency(MetricsSink.Stage.INPUT, System.nanoTime() - openStart);
+
+                    // Transforms are built once here and reused for every document in the assembly
+                    TransformPool transformPool = new TransformPool(() -> new PageTransforms(cvtParams, jawsMako));
+                    pageCount = outputIterateByPage(cvtParams, jawsMako, assembly, output, transformPool);
+                } catch (RuntimeException e) {
+                    if (watch.abortReason() != null)
+                        throw new IllegalStateException("conversion aborted, it " + watch.abortReason(), e);
+                    throw e;
+                }
+            }
+
+            if (memoryReport != null)
+                memoryReport.print(System.out, pageCount);
+
+            if (cvtParams.profile)
+                outputHandler.printReport(System.out);
+
+            metrics.printSummary(System.out);
+            if (metricsFile != null)
+                metrics.writeTo(Path.of(metricsFile));
+            if (metricsServer != null)
+                metricsServer.stop(0);
         } catch (Exception ex) {
             System.out.println("Exception: " + ex.getMessage());
             System.exit(1);
@@ -0,0 +1,47 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="TransformPool.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Long-lived pool of page transform sets, so the custom transform, color
+ *  converter and transform chain are built once and reused across pages,
+ *  documents and jobs rather than for every conversion.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class TransformPool {
+    private final Supplier<ProgressMonitoring.PageTransforms> factory;
+    private final ConcurrentLinkedQueue<ProgressMonitoring.PageTransforms> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    public TransformPool(Supplier<ProgressMonitoring.PageTransforms> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Take an idle transform set, or build a new one if they are all in use.
+     * The caller has sole use of it until it is released.
+     */
+    public ProgressMonitoring.PageTransforms acquire() {
+        ProgressMonitoring.PageTransforms transforms = idle.poll();
+        if (transforms != null)
+            return transforms;
+
+        created.incrementAndGet();
+        return factory.get();
+    }
+
+    public void release(ProgressMonitoring.PageTransforms transforms) {
+        idle.offer(transforms);
+    }
+
+    /** The number of transform sets built so far; at most the peak number used at once. */
+    public int created() {
+        return created.get();
+    }
+}
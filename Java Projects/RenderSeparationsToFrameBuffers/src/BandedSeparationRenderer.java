@@ -0,0 +1,170 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="BandedSeparationRenderer.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Renders the separations of a page into frame buffers one horizontal band
+ *  at a time, optionally rendering several bands at once, and hands the
+ *  bands to a consumer in top-to-bottom order.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.math.BigInteger;
+import java.nio.*;
+import java.util.concurrent.*;
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+
+public class BandedSeparationRenderer {
+
+    /**
+     * Receives each band once it has been rendered. Row {@code y} of the band for channel
+     * {@code c} starts at byte {@code (bufferRow + y) * pixelWidth} of {@code buffers[c]}.
+     * The band's buffer space is reused once this returns.
+     */
+    public interface BandConsumer {
+        void accept(ByteBuffer[] buffers, int bufferRow, int bandTop, int rows);
+    }
+
+    private final IJawsMako mako;
+    private final IDOMFixedPage fixedPage;
+    private final short depth;
+    private final IDOMColorSpace colorSpace;
+    private final FRect bounds;
+    private final double resolution;
+    private final int pixelWidth;
+    private final int pixelHeight;
+    private final int numChannels;
+    private final CEDLVectString retainSpotColorNames;
+    private final CEDLVectString ignoreSpotColorNames;
+    private final FrameBufferArena arena;
+    private final boolean slab;
+
+    /**
+     * @param arena supplies the frame buffers for each render and takes them back afterwards
+     * @param slab  hold all the channels in one buffer rather than one buffer per channel
+     */
+    public BandedSeparationRenderer(IJawsMako mako, IDOMFixedPage fixedPage, int depth, IDOMColorSpace colorSpace,
+                                    FRect bounds, double resolution, int pixelWidth, int pixelHeight, int numChannels,
+                                    CEDLVectString retainSpotColorNames, CEDLVectString ignoreSpotColorNames,
+                                    FrameBufferArena arena, boolean slab) {
+        this.mako = mako;
+        this.fixedPage = fixedPage;
+        this.depth = (short) depth;
+        this.colorSpace = colorSpace;
+        this.bounds = bounds;
+        this.resolution = resolution;
+        this.pixelWidth = pixelWidth;
+        this.pixelHeight = pixelHeight;
+        this.numChannels = numChannels;
+        this.retainSpotColorNames = retainSpotColorNames;
+        this.ignoreSpotColorNames = ignoreSpotColorNames;
+        this.arena = arena;
+        this.slab = slab;
+    }
+
+    /**
+     * Render the page in bands of {@code bandRows} rows. With more than one thread, each
+     * thread renders whole bands with its own IJawsRenderer into its own slice of the frame
+     * buffers, while the consumer is called for completed bands in order on this thread.
+     * At most two bands per thread are held at once.
+     */
+    public void render(int bandRows, int threads, BandConsumer consumer) {
+        int slots = threads > 1 ? 2 * threads : 1;
+        int numBands = (pixelHeight + bandRows - 1) / bandRows;
+        slots = Math.min(slots, numBands);
+
+        // Each channel holds a band for each slot one after the other, and each slot addresses
+        // its part of the channels through the frame buffer offset
+        try (FrameBufferArena.Lease lease = arena.lease(pixelWidth, bandRows * slots, numChannels, slab)) {
+            CEDLVectCFrameBufferInfo[] slotFrameBuffers = new CEDLVectCFrameBufferInfo[slots];
+            for (int slot = 0; slot < slots; slot++)
+                slotFrameBuffers[slot] = lease.frameBuffers(slot * bandRows * pixelWidth);
+
+            if (threads <= 1) {
+                IJawsRenderer renderer = IJawsRenderer.create(mako);
+                for (int band = 0; band < numBands; band++) {
+                    int bandTop = band * bandRows;
+                    int rows = Math.min(bandRows, pixelHeight - bandTop);
+                    renderBand(renderer, lease, slotFrameBuffers[0], 0, bandTop, rows);
+                    consumer.accept(lease.planes(), 0, bandTop, rows);
+                }
+            } else {
+                renderInParallel(bandRows, threads, slots, numBands, lease, slotFrameBuffers, consumer);
+            }
+        }
+    }
+
+    private void renderInParallel(int bandRows, int threads, int slots, int numBands, FrameBufferArena.Lease lease,
+                                  CEDLVectCFrameBufferInfo[] slotFrameBuffers, BandConsumer consumer) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, Workers.daemonThreads("band-renderer"));
+        ThreadLocal<IJawsRenderer> renderers = ThreadLocal.withInitial(() -> IJawsRenderer.create(mako));
+
+        try {
+            Future<?>[] pending = new Future<?>[slots];
+            int submitted = 0;
+
+            for (int band = 0; band < numBands; band++) {
+                // Keep every free slot busy
+                for (; submitted < numBands && submitted < band + slots; submitted++) {
+                    int slot = submitted % slots;
+                    int bandTop = submitted * bandRows;
+                    int rows = Math.min(bandRows, pixelHeight - bandTop);
+                    pending[slot] = pool.submit(() -> renderBand(renderers.get(), lease, slotFrameBuffers[slot],
+                            slot * bandRows * pixelWidth, bandTop, rows));
+                }
+
+                int slot = band % slots;
+                Workers.await(pending[slot]);
+
+                int bandTop = band * bandRows;
+                consumer.accept(lease.planes(), slot * bandRows, bandTop, Math.min(bandRows, pixelHeight - bandTop));
+            }
+        } finally {
+            // Wait for any band still rendering before the buffers go back to the arena
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Render one band into the part of the lease that starts {@code slotOffset} bytes into each
+     * channel. The slot still holds the band rendered into it before, and nothing documents that
+     * the renderer writes every pixel, so it is zeroed first.
+     */
+    private void renderBand(IJawsRenderer renderer, FrameBufferArena.Lease lease, CEDLVectCFrameBufferInfo frameBuffers,
+                            int slotOffset, int bandTop, int rows) {
+        lease.clear(slotOffset, rows * pixelWidth);
+
+        // The part of the page covered by this band, in page units (1/96 inch)
+        FRect bandBounds = new FRect(
+                bounds.getX(),
+                bounds.getY() + bandTop * 96.0 / resolution,
+                bounds.getDX(),
+                rows * 96.0 / resolution);
+
+        renderer.renderSeparationsToFrameBuffers(
+                fixedPage,
+                depth,
+                true,
+                pixelWidth,
+                rows,
+                colorSpace,
+                lease.buffers(),
+                frameBuffers,
+                (short) 0,
+                bandBounds,
+                new CEDLVectWString(retainSpotColorNames.toArray()),
+                IOptionalContent.Null(),
+                eOptionalContentEvent.eOCEView,
+                new CEDLVectWString(),
+                false,
+                BigInteger.valueOf(0),
+                new CEDLVectWString(ignoreSpotColorNames.toArray())
+        );
+    }
+}
@@ -0,0 +1,216 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="FrameBufferArena.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Pool of direct frame buffers for renderSeparationsToFrameBuffers, keyed by
+ *  geometry and channel count, so repeated renders reuse native memory
+ *  instead of allocating new direct buffers for every page.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.io.PrintStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+
+public class FrameBufferArena {
+
+    /** The shape of a set of frame buffers; only leases of the same shape share memory. */
+    public record Geometry(int rowStride, int rows, int channels, boolean slab) {
+        long planeBytes() {
+            return (long) rowStride * rows;
+        }
+
+        long totalBytes() {
+            return planeBytes() * channels;
+        }
+    }
+
+    /**
+     * Frame buffers leased from the arena. Close the lease to hand the memory back; the
+     * buffers must not be used afterwards. Every lease starts out zeroed, whether its memory
+     * is new or reused.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Geometry geometry;
+        private final ByteBuffer[] buffers;
+        private final ByteBuffer[] planes;
+        private boolean closed;
+
+        private Lease(Geometry geometry, ByteBuffer[] buffers, ByteBuffer[] planes) {
+            this.geometry = geometry;
+            this.buffers = buffers;
+            this.planes = planes;
+        }
+
+        /**
+         * The buffers to pass to the renderer. For a slab every entry is the same buffer and
+         * the channels are told apart by {@link #channelOffset}.
+         */
+        public ByteBuffer[] buffers() {
+            return buffers;
+        }
+
+        /** One buffer per channel, each starting at the channel's first byte. */
+        public ByteBuffer[] planes() {
+            return planes;
+        }
+
+        /** Where a channel starts within {@code buffers()[channel]}. */
+        public int channelOffset(int channel) {
+            return geometry.slab() ? (int) (channel * geometry.planeBytes()) : 0;
+        }
+
+        /**
+         * Frame buffer descriptions for every channel, for a region that starts {@code offset}
+         * bytes into each channel.
+         */
+        public CEDLVectCFrameBufferInfo frameBuffers(int offset) {
+            CEDLVectCFrameBufferInfo frameBuffers = new CEDLVectCFrameBufferInfo();
+            for (int c = 0; c < geometry.channels(); c++) {
+                IJawsRenderer.CFrameBufferInfo fbInfo = new IJawsRenderer.CFrameBufferInfo();
+                fbInfo.setBufferOfs(channelOffset(c) + offset);
+                fbInfo.setRowStride(geometry.rowStride());
+                fbInfo.setPixelStride(0);
+                frameBuffers.append(fbInfo);
+            }
+            return frameBuffers;
+        }
+
+        /**
+         * Zero {@code length} bytes of every channel, starting {@code offset} bytes into each,
+         * such as a band that is about to be rendered again.
+         */
+        public void clear(int offset, int length) {
+            for (ByteBuffer plane : planes)
+                zero(plane, offset, length);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(this);
+            }
+        }
+    }
+
+    // Copied into reused buffers to clear them, a chunk at a time
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final long maxPooledBytes;
+    private final Map<Geometry, ArrayDeque<Lease>> free = new HashMap<>();
+
+    private long leases;
+    private long hits;
+    private long pooledBytes;
+    private long nativeBytes;
+    private long peakNativeBytes;
+
+    /**
+     * @param maxPooledBytes the most memory kept for reuse while not leased; buffers returned
+     *                       beyond this are left to the garbage collector
+     */
+    public FrameBufferArena(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Lease a frame buffer for each channel, reusing a returned lease of the same geometry
+     * when there is one.
+     *
+     * @param slab allocate the channels one after the other in a single buffer
+     */
+    public Lease lease(int rowStride, int rows, int channels, boolean slab) {
+        Geometry geometry = new Geometry(rowStride, rows, channels, slab);
+        Lease reused = takePooled(geometry);
+        if (reused == null)
+            return allocate(geometry);
+
+        // The renderer is not documented to write every pixel, so clear what the previous
+        // lease left behind. This is done outside the lock, as it touches every byte.
+        reused.clear(0, Math.toIntExact(geometry.planeBytes()));
+        return reused;
+    }
+
+    private synchronized Lease takePooled(Geometry geometry) {
+        leases++;
+        ArrayDeque<Lease> pooled = free.get(geometry);
+        if (pooled == null || pooled.isEmpty())
+            return null;
+
+        hits++;
+        pooledBytes -= geometry.totalBytes();
+        Lease previous = pooled.pop();
+        return new Lease(geometry, previous.buffers, previous.planes);
+    }
+
+    // New direct buffers are already zeroed by the JVM
+    private synchronized Lease allocate(Geometry geometry) {
+        int channels = geometry.channels();
+        boolean slab = geometry.slab();
+        if (geometry.totalBytes() > Integer.MAX_VALUE && slab)
+            throw new IllegalArgumentException("A slab of " + geometry.totalBytes() + " bytes is larger than a ByteBuffer can address");
+
+        ByteBuffer[] buffers = new ByteBuffer[channels];
+        ByteBuffer[] planes = new ByteBuffer[channels];
+        int planeBytes = Math.toIntExact(geometry.planeBytes());
+        if (slab) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) geometry.totalBytes()).order(ByteOrder.nativeOrder());
+            for (int c = 0; c < channels; c++) {
+                buffers[c] = buffer;
+                planes[c] = buffer.slice(c * planeBytes, planeBytes).order(ByteOrder.nativeOrder());
+            }
+        } else {
+            for (int c = 0; c < channels; c++) {
+                buffers[c] = ByteBuffer.allocateDirect(planeBytes).order(ByteOrder.nativeOrder());
+                planes[c] = buffers[c];
+            }
+        }
+
+        nativeBytes += geometry.totalBytes();
+        peakNativeBytes = Math.max(peakNativeBytes, nativeBytes);
+        return new Lease(geometry, buffers, planes);
+    }
+
+    private static void zero(ByteBuffer buffer, int offset, int length) {
+        for (int pos = offset, end = offset + length; pos < end; pos += ZEROS.length)
+            buffer.put(pos, ZEROS, 0, Math.min(ZEROS.length, end - pos));
+    }
+
+    private synchronized void release(Lease lease) {
+        long bytes = lease.geometry.totalBytes();
+        if (pooledBytes + bytes > maxPooledBytes) {
+            nativeBytes -= bytes;
+            return;
+        }
+        pooledBytes += bytes;
+        free.computeIfAbsent(lease.geometry, g -> new ArrayDeque<>()).push(lease);
+    }
+
+    /**
+     * Drop every pooled buffer, for example before rendering pages of a different size.
+     */
+    public synchronized void clear() {
+        nativeBytes -= pooledBytes;
+        pooledBytes = 0;
+        free.clear();
+    }
+
+    public synchronized void printReport(PrintStream out) {
+        out.printf("Frame buffer arena: %d leases, %d reused (%.1f%% hit rate), peak %.1f MB, %.1f MB pooled%n",
+                leases, hits, leases == 0 ? 0.0 : 100.0 * hits / leases,
+                peakNativeBytes / 1048576.0, pooledBytes / 1048576.0);
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct"))
+                out.printf("JVM direct memory: %d buffers, %.1f MB in use%n", pool.getCount(), pool.getMemoryUsed() / 1048576.0);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="PlateEncoder.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Encodes the separations of a page to one TIFF per plate, with the plates
+ *  compressed concurrently on a bounded pool, and reports the encode time
+ *  and output size of each plate.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import com.globalgraphics.JawsMako.jawsmakoIF.*;
+
+public class PlateEncoder implements AutoCloseable {
+
+    /** How each plate is compressed. */
+    public record Settings(IDOMTIFFImage.eTIFFCompression compression, IDOMTIFFImage.eTIFFPrediction prediction, int threads) {
+        public static Settings defaults() {
+            return new Settings(IDOMTIFFImage.eTIFFCompression.eTCAuto, IDOMTIFFImage.eTIFFPrediction.eTPNone, 1);
+        }
+    }
+
+    private final IJawsMako mako;
+    private final Settings settings;
+    private final List<String> plateNames;
+    private final String[] fileNames;
+    private final long[] encodeNanos;
+    private final ExecutorService pool;
+
+    /**
+     * @param plateNames one name per plate, in channel order
+     * @param fileNames  the TIFF written for each plate
+     */
+    public PlateEncoder(IJawsMako mako, Settings settings, List<String> plateNames, String[] fileNames) {
+        this.mako = mako;
+        this.settings = settings;
+        this.plateNames = plateNames;
+        this.fileNames = fileNames;
+        this.encodeNanos = new long[plateNames.size()];
+
+        int threads = Math.min(settings.threads(), plateNames.size());
+        if (threads > 1) {
+            pool = Executors.newFixedThreadPool(threads, Workers.daemonThreads("plate-encoder"));
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * Encode images that have already been rendered, such as those returned by renderSeparations.
+     */
+    public void encodeImages(CEDLVectIDOMImage images) {
+        forEachPlate(j -> IDOMTIFFImage.encode(mako, images.getitem(j),
+                IOutputStream.createToFile(mako.getFactory(), fileNames[j]),
+                settings.compression(), settings.prediction()));
+    }
+
+    /**
+     * Opens a TIFF writer for every plate, so frame buffers can be encoded band by band
+     * with {@link #writeRows}. Finish with {@link #flush}.
+     */
+    public Writers openWriters(int pixelWidth, int pixelHeight, int depth, String sourcePath) {
+        var factory = mako.getFactory();
+        IImageFrameWriter[] frameWriters = new IImageFrameWriter[plateNames.size()];
+        for (int j = 0; j < frameWriters.length; j++) {
+            var pair = IDOMTIFFImage.createWriterAndImage(
+                    mako,
+                    IDOMColorSpaceDeviceGray.create(factory),
+                    pixelWidth,
+                    pixelHeight,
+                    (short) depth,
+                    96.0, 96.0,
+                    settings.compression(),
+                    settings.prediction(),
+                    eImageExtraChannelType.eIECNone,
+                    false,
+                    IInputStream.createFromFile(factory, sourcePath),
+                    IOutputStream.createToFile(factory, fileNames[j])
+            );
+            frameWriters[j] = pair.getFrameWriter();
+        }
+        return new Writers(frameWriters, pixelWidth);
+    }
+
+    /** The open TIFF writers, with a scanline for each so plates can be written at the same time. */
+    public class Writers {
+        private final IImageFrameWriter[] frameWriters;
+        private final byte[][] scanlines;
+        private final int pixelWidth;
+
+        private Writers(IImageFrameWriter[] frameWriters, int pixelWidth) {
+            this.frameWriters = frameWriters;
+            this.scanlines = new byte[frameWriters.length][pixelWidth];
+            this.pixelWidth = pixelWidth;
+        }
+
+        /**
+         * Append rows to every plate, one plate per task, returning once all have been written
+         * so the caller can reuse the buffers.
+         */
+        public void writeRows(ByteBuffer[] buffers, int firstRow, int rows) {
+            forEachPlate(j -> RenderSeparationsToFrameBuffers.exportRows(buffers[j], firstRow, rows, pixelWidth,
+                    frameWriters[j], scanlines[j]));
+        }
+
+        public void flush() {
+            forEachPlate(j -> frameWriters[j].flushData());
+        }
+    }
+
+    /**
+     * Print the time spent encoding each plate and the size of its TIFF.
+     */
+    public void printReport(PrintStream out) {
+        long totalBytes = 0;
+        out.printf("Plates encoded with %s, %s on %d thread(s)%n", settings.compression(), settings.prediction(),
+                pool == null ? 1 : settings.threads());
+        for (int j = 0; j < fileNames.length; j++) {
+            long bytes = new File(fileNames[j]).length();
+            totalBytes += bytes;
+            out.printf("  %-16s %8.3f s %12d bytes  %s%n", plateNames.get(j), encodeNanos[j] / 1e9, bytes, fileNames[j]);
+        }
+        out.printf("  %-16s %8.3f s %12d bytes%n", "total", Arrays.stream(encodeNanos).sum() / 1e9, totalBytes);
+    }
+
+    private interface PlateTask {
+        void run(int plate);
+    }
+
+    // Run the task for every plate and wait for all of them, adding the time taken to each plate
+    private void forEachPlate(PlateTask task) {
+        if (pool == null) {
+            for (int j = 0; j < encodeNanos.length; j++)
+                timed(task, j);
+            return;
+        }
+
+        Future<?>[] pending = new Future<?>[encodeNanos.length];
+        for (int j = 0; j < pending.length; j++) {
+            int plate = j;
+            pending[j] = pool.submit(() -> timed(task, plate));
+        }
+        for (Future<?> future : pending)
+            Workers.await(future);
+    }
+
+    // Each plate is only ever handled by one task at a time, so its total needs no locking
+    private void timed(PlateTask task, int plate) {
+        long start = System.nanoTime();
+        task.run(plate);
+        encodeNanos[plate] += System.nanoTime() - start;
+    }
+
+    /**
+     * Look up a TIFF option by its name, with or without the enum prefix and ignoring case,
+     * so that "lzw" and "eTCLZW" both select eTCLZW.
+     */
+    public static <E extends Enum<E>> E parseOption(Class<E> type, String prefix, String name) {
+        for (E value : type.getEnumConstants()) {
+            if (value.name().equalsIgnoreCase(name) || value.name().equalsIgnoreCase(prefix + name))
+                return value;
+        }
+        throw new IllegalArgumentException("Unknown " + type.getSimpleName() + " " + name
+                + "; expected one of " + Arrays.toString(type.getEnumConstants()));
+    }
+
+    @Override
+    public void close() {
+        if (pool != null)
+            pool.shutdownNow();
+    }
+}
@@ -14,16 +14,45 @@ import java.io.*;
 import java.math.BigInteger;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
 import com.globalgraphics.JawsMako.jawsmakoIF.*;
 import com.globalgraphics.JawsMako.jawsmakoIF.jawsmakoIF.*;
 
 public class RenderSeparationsToFrameBuffers {
+
+    // Settings from the command line that apply to every page
+    static class Options {
+        boolean renderToFrameBuffers;
+        int bandHeight = 0;     // 0 = render the whole page at once, or a few bands per thread
+        int renderThreads = 1;
+        int[] benchmarkThreads = null;
+        boolean benchmarkExport = false;
+        PlateEncoder.Settings encoding = PlateEncoder.Settings.defaults();
+        boolean slab = false;
+        boolean allPages = false;
+    }
+
+    // The plates rendered for a set of inks, in channel order
+    record InkPlan(List<String> componentNames, CEDLVectString retainSpotColorNames, CEDLVectString ignoreSpotColorNames) {}
+
+    // A page with its content loaded and its inks found, ready to render
+    record PreparedPage(int index, IPage page, IDOMFixedPage fixedPage, InkPlan inks) {}
+
     public static void main(String[] args) {
         try {
             String testFilePath = "TestFiles/";
 
             if (args.length < 4) {
-                System.out.println("Usage: java RenderSeparationsToFrameBuffers <source file> <spots to retain> <spots to ignore> <framebuffers=true/false>");
+                System.out.println("Usage: java RenderSeparationsToFrameBuffers <source file> <spots to retain> <spots to ignore> <framebuffers=true/false> [options]");
+                System.out.println("  --all-pages           render every page, not just the first; outputs are named <name>_p<n>_...");
+                System.out.println("  --band-height <rows>  render the frame buffers in horizontal bands of this many rows");
+                System.out.println("  --render-threads <n>  render bands on this many threads at once");
+                System.out.println("  --benchmark-threads <n,n,...>  time frame-buffer rendering at each thread count and report the speed-up");
+                System.out.println("  --benchmark-export    time exporting the rendered plates to TIFF, split into buffer reads and encoding");
+                System.out.println("  --encode-threads <n>  encode up to this many plates at once (default 1)");
+                System.out.println("  --compression <c>     TIFF compression, e.g. auto, none, lzw, flate (default auto)");
+                System.out.println("  --prediction <p>      TIFF prediction, e.g. none, horizontal (default none)");
+                System.out.println("  --slab                hold all the frame buffers in one contiguous native buffer");
                 return;
             }
 
@@ -37,6 +66,32 @@ public class RenderSeparationsToFrameBuffers {
                 return;
             }
 
+            Options options = new Options();
+            options.renderToFrameBuffers = renderToFrameBuffers.equals("true");
+            for (int i = 4; i < args.length; i++) {
+                var encoding = options.encoding;
+                switch (args[i]) {
+                    case "--all-pages" -> options.allPages = true;
+                    case "--band-height" -> options.bandHeight = Integer.parseInt(args[++i]);
+                    case "--render-threads" -> options.renderThreads = Integer.parseInt(args[++i]);
+                    case "--benchmark-threads" -> options.benchmarkThreads = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    case "--benchmark-export" -> options.benchmarkExport = true;
+                    case "--encode-threads" -> options.encoding = new PlateEncoder.Settings(encoding.compression(), encoding.prediction(),
+                            Integer.parseInt(args[++i]));
+                    case "--compression" -> options.encoding = new PlateEncoder.Settings(
+                            PlateEncoder.parseOption(IDOMTIFFImage.eTIFFCompression.class, "eTC", args[++i]),
+                            encoding.prediction(), encoding.threads());
+                    case "--prediction" -> options.encoding = new PlateEncoder.Settings(encoding.compression(),
+                            PlateEncoder.parseOption(IDOMTIFFImage.eTIFFPrediction.class, "eTP", args[++i]),
+                            encoding.threads());
+                    case "--slab" -> options.slab = true;
+                    default -> {
+                        System.out.println("Unknown option " + args[i]);
+                        return;
+                    }
+                }
+            }
+
             IJawsMako mako = IJawsMako.create("", "");
             IJawsMako.enableAllFeatures(mako);
             var factory = mako.getFactory();
@@ -44,22 +99,72 @@ public class RenderSeparationsToFrameBuffers {
             // Input
             IPDFInput pdfInput = IPDFInput.create(mako);
             IDocumentAssembly assembly = pdfInput.open(testFilePath + inputFile);
-            IPage page = assembly.getDocument().getPage();
-            IDOMFixedPage fixedPage = page.getContent();
+            IDocument document = assembly.getDocument();
+            boolean benchmarking = options.benchmarkThreads != null || options.benchmarkExport;
+            int pageCount = options.allPages && !benchmarking ? (int) document.getNumPages() : 1;
 
-            // Set image dimensions + color space
-            double resolution = 576.0;
-            FRect bounds = new FRect(0, 0, page.getWidth(), page.getHeight());
+            IDOMColorSpaceDeviceCMYK testspace = IDOMColorSpaceDeviceCMYK.create(factory);
+            IJawsRenderer renderer = IJawsRenderer.create(mako);
+            var arena = new FrameBufferArena(1L << 30);     // keep up to 1 GB of frame buffers for reuse
+            String stem = new File(inputFile).getName().replaceFirst("[.][^.]+$", "");
 
-            int pixelWidth = (int) Math.round(bounds.getDX() / 96.0 * resolution);
-            int pixelHeight = (int) Math.round(bounds.getDY() / 96.0 * resolution);
+            // The next page is loaded and its inks found on a background thread while this page renders
+            Map<String, InkPlan> inkPlans = new HashMap<>();
+            ExecutorService prefetcher = Executors.newSingleThreadExecutor(Workers.daemonThreads("ink-discovery"));
 
-            int depth = 8;
-            IDOMColorSpaceDeviceCMYK testspace = IDOMColorSpaceDeviceCMYK.create(factory);
+            try {
+                Future<PreparedPage> next = prefetcher.submit(() ->
+                        preparePage(mako, document, 0, testspace, spotsToRetain, spotsToIgnore, inkPlans));
+
+                for (int index = 0; index < pageCount; index++) {
+                    PreparedPage prepared = Workers.await(next);
+                    if (index + 1 < pageCount) {
+                        int nextIndex = index + 1;
+                        next = prefetcher.submit(() ->
+                                preparePage(mako, document, nextIndex, testspace, spotsToRetain, spotsToIgnore, inkPlans));
+                    }
+
+                    String pageStem = options.allPages ? stem + "_p" + (index + 1) : stem;
+                    try {
+                        renderPage(mako, renderer, options, prepared, testspace, arena, pageStem, testFilePath + inputFile);
+                    } finally {
+                        // Release each page once its plates are encoded so memory does not grow with the page count
+                        prepared.page().release();
+                    }
+                }
+            } finally {
+                prefetcher.shutdownNow();
+            }
+
+            if (options.renderToFrameBuffers)
+                arena.printReport(System.out);
+            if (options.allPages)
+                System.out.printf("%d pages rendered, %d distinct ink sets%n", pageCount, inkPlans.size());
+            System.out.println("Rendering complete.");
+
+        } catch (Exception e) {
+            System.err.println("Exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load a page and find its inks. findInks runs for every page; only the InkPlan built
+     * from its result is cached, and pages with the same inks share one, so a long document
+     * with a handful of ink sets only builds a handful of plans.
+     */
+    static PreparedPage preparePage(IJawsMako mako, IDocument document, int index, IDOMColorSpace testspace,
+                                    String spotsToRetain, String spotsToIgnore, Map<String, InkPlan> inkPlans) {
+        IPage page = document.getPage(index);
+        IDOMFixedPage fixedPage = page.getContent();
 
-            // Find inks
-            CEDLVectCInkInfo inks = IRendererTransform.findInks(mako, fixedPage);
+        // Find inks. This walks the page content every time; the binding gives no identity for
+        // shared page resources, so there is nothing to key a cache of its result on
+        CEDLVectCInkInfo inks = IRendererTransform.findInks(mako, fixedPage);
+        List<String> inkNames = new ArrayList<>();
+        for (int i = 0; i < inks.size(); i++)
+            inkNames.add(inks.getitem(i).getInkName());
 
+        InkPlan inkPlan = inkPlans.computeIfAbsent(String.join("\n", inkNames), key -> {
             List<String> componentNames = new ArrayList<>();
             CEDLVectString ignoreSpotColorNames = new CEDLVectString();
             CEDLVectString retainSpotColorNames = new CEDLVectString();
@@ -69,9 +174,7 @@ public class RenderSeparationsToFrameBuffers {
                 componentNames.add(testspace.getColorantName((byte) i));
             }
 
-            for (int i = 0; i < inks.size(); i++) {
-                var ink = inks.getitem(i);
-                String inkName = ink.getInkName();
+            for (String inkName : inkNames) {
                 if (spotsToIgnore.contains(inkName)) {
                     ignoreSpotColorNames.append(inkName);
                 } else if (spotsToRetain.contains(inkName)) {
@@ -79,112 +182,191 @@ public class RenderSeparationsToFrameBuffers {
                     componentNames.add(inkName);
                 }
             }
+            return new InkPlan(componentNames, retainSpotColorNames, ignoreSpotColorNames);
+        });
 
-            IJawsRenderer renderer = IJawsRenderer.create(mako);
+        return new PreparedPage(index, page, fixedPage, inkPlan);
+    }
 
-            if (renderToFrameBuffers.equals("false")) {
-                // Render using renderSeparations
-                var images = renderer.renderSeparations(
-                        fixedPage,
-                        (short) depth,
-                        testspace,
-                        (short) 0,
-                        bounds,
-                        pixelWidth,
-                        pixelHeight,
-                        retainSpotColorNames,
-                        IOptionalContent.Null(),
-                        eOptionalContentEvent.eOCEView,
-                        new CEDLVectString(),
-                        false,
-                        BigInteger.valueOf(0),
-                        ignoreSpotColorNames
-                );
-
-                // Write outputs to TIFF
-                String stem = new File(inputFile).getName().replaceFirst("[.][^.]+$", "");
-
-                for (int j = 0; j < componentNames.size(); j++) {
-                    String tiffFileName = stem + "_regular_" + componentNames.get(j) + ".tif";
-                    IDOMTIFFImage.encode(mako, images.getitem(j), IOutputStream.createToFile(factory, tiffFileName));
-                }
+    /**
+     * Render the separations of one page and write a TIFF per plate, named
+     * {@code <outputStem>_regular_<plate>.tif} or {@code <outputStem>_frameBuffer_<plate>.tif}.
+     */
+    static void renderPage(IJawsMako mako, IJawsRenderer renderer, Options options, PreparedPage prepared,
+                           IDOMColorSpace testspace, FrameBufferArena arena, String outputStem, String sourcePath) {
+        IPage page = prepared.page();
+        IDOMFixedPage fixedPage = prepared.fixedPage();
+        List<String> componentNames = prepared.inks().componentNames();
+        CEDLVectString retainSpotColorNames = prepared.inks().retainSpotColorNames();
+        CEDLVectString ignoreSpotColorNames = prepared.inks().ignoreSpotColorNames();
+
+        // Set image dimensions + color space
+        double resolution = 576.0;
+        FRect bounds = new FRect(0, 0, page.getWidth(), page.getHeight());
+
+        int pixelWidth = (int) Math.round(bounds.getDX() / 96.0 * resolution);
+        int pixelHeight = (int) Math.round(bounds.getDY() / 96.0 * resolution);
+
+        int depth = 8;
+
+        if (!options.renderToFrameBuffers) {
+            // Render using renderSeparations
+            var images = renderer.renderSeparations(
+                    fixedPage,
+                    (short) depth,
+                    testspace,
+                    (short) 0,
+                    bounds,
+                    pixelWidth,
+                    pixelHeight,
+                    retainSpotColorNames,
+                    IOptionalContent.Null(),
+                    eOptionalContentEvent.eOCEView,
+                    new CEDLVectString(),
+                    false,
+                    BigInteger.valueOf(0),
+                    ignoreSpotColorNames
+            );
+
+            // Write outputs to TIFF, encoding the plates concurrently
+            String[] tiffFileNames = new String[componentNames.size()];
+            for (int j = 0; j < tiffFileNames.length; j++)
+                tiffFileNames[j] = outputStem + "_regular_" + componentNames.get(j) + ".tif";
+
+            try (var encoder = new PlateEncoder(mako, options.encoding, componentNames, tiffFileNames)) {
+                encoder.encodeImages(images);
+                encoder.printReport(System.out);
             }
-            else {
-                // Prepare frame buffers
-                int numChannels = componentNames.size();
-                ByteBuffer[] buffers = new ByteBuffer[numChannels];
-                CEDLVectCFrameBufferInfo frameBuffers = new CEDLVectCFrameBufferInfo();
-
-                for (byte i = 0; i < numChannels; i++) {
-                    ByteBuffer buf = ByteBuffer.allocateDirect(pixelWidth * pixelHeight);
-                    buf.order(ByteOrder.nativeOrder());
-                    buffers[i] = buf;
-
-                    IJawsRenderer.CFrameBufferInfo fbInfo = new IJawsRenderer.CFrameBufferInfo();
-                    fbInfo.setBufferOfs(0);
-                    fbInfo.setRowStride(pixelWidth);
-                    fbInfo.setPixelStride(0);
-                    frameBuffers.append(fbInfo);
-                }
+            return;
+        }
 
-                // Render using renderSeparationsToFrameBuffers
-                renderer.renderSeparationsToFrameBuffers(
-                        fixedPage,
-                        (short) depth,
-                        true,
-                        pixelWidth,
-                        pixelHeight,
-                        testspace,
-                        buffers,
-                        frameBuffers,
-                        (short) 0,
-                        bounds,
-                        new CEDLVectWString(retainSpotColorNames.toArray()),
-                        IOptionalContent.Null(),
-                        eOptionalContentEvent.eOCEView,
-                        new CEDLVectWString(),
-                        false,
-                        BigInteger.valueOf(0),
-                        new CEDLVectWString(ignoreSpotColorNames.toArray())
-                );
-
-                // Write outputs to TIFFs
-                String stem = new File(inputFile).getName().replaceFirst("[.][^.]+$", "");
-
-                for (int j = 0; j < numChannels; j++) {
-                    String tiffFileName = stem + "_frameBuffer_" + componentNames.get(j) + ".tif";
-
-                    var pair = IDOMTIFFImage.createWriterAndImage(
-                            mako,
-                            IDOMColorSpaceDeviceGray.create(factory),
-                            pixelWidth,
-                            pixelHeight,
-                            (short) depth,
-                            96.0, 96.0,
-                            IDOMTIFFImage.eTIFFCompression.eTCAuto,
-                            IDOMTIFFImage.eTIFFPrediction.eTPNone,
-                            eImageExtraChannelType.eIECNone,
-                            false,
-                            IInputStream.createFromFile(factory, testFilePath + inputFile),
-                            IOutputStream.createToFile(factory, tiffFileName)
-                    );
-
-                    IImageFrameWriter frameWriter = pair.getFrameWriter();
-
-                    ByteBuffer buffer = buffers[j];
-                    byte[] scanline = new byte[pixelWidth];
-                    for (int y = 0; y < pixelHeight; y++) {
-                        buffer.position(y * pixelWidth);
-                        buffer.get(scanline, 0, pixelWidth);
-                        frameWriter.writeScanLine(scanline);
-                    }
-                    frameWriter.flushData();
-                }
+        // Render in horizontal bands so only a few bands of each separation are held at a time
+        int numChannels = componentNames.size();
+        var bandRenderer = new BandedSeparationRenderer(mako, fixedPage, depth, testspace, bounds, resolution,
+                pixelWidth, pixelHeight, numChannels, retainSpotColorNames, ignoreSpotColorNames, arena, options.slab);
+
+        if (options.benchmarkThreads != null) {
+            benchmarkBandRendering(bandRenderer, pixelWidth, pixelHeight, options.bandHeight, options.benchmarkThreads);
+            return;
+        }
+        if (options.benchmarkExport) {
+            bandRenderer.render(pixelHeight, 1, (buffers, bufferRow, bandTop, rows) ->
+                    benchmarkPlateExport(mako, buffers, componentNames, pixelWidth, rows));
+            return;
+        }
+
+        int bandRows = bandRowsFor(pixelHeight, options.bandHeight, options.renderThreads);
+
+        // Open a TIFF writer for each separation; every band is appended as soon as it is rendered
+        String[] tiffFileNames = new String[numChannels];
+        for (int j = 0; j < numChannels; j++)
+            tiffFileNames[j] = outputStem + "_frameBuffer_" + componentNames.get(j) + ".tif";
+
+        try (var encoder = new PlateEncoder(mako, options.encoding, componentNames, tiffFileNames)) {
+            var writers = encoder.openWriters(pixelWidth, pixelHeight, depth, sourcePath);
+
+            // Bands arrive in page order, so the scanlines are written top to bottom; the plates
+            // of a band are encoded concurrently and all finish before its buffers are reused
+            bandRenderer.render(bandRows, options.renderThreads, (buffers, bufferRow, bandTop, rows) ->
+                    writers.writeRows(buffers, bufferRow, rows));
+
+            writers.flush();
+            encoder.printReport(System.out);
+        }
+    }
+
+    /**
+     * Write rows of one separation from its frame buffer to its TIFF writer. The writer only
+     * accepts a heap array per row, so each row is copied out once with an absolute bulk get;
+     * the buffer's position is never changed, so plates can be exported from several threads.
+     */
+    static void exportRows(ByteBuffer plate, int firstRow, int rows, int pixelWidth, IImageFrameWriter frameWriter, byte[] scanline) {
+        int offset = firstRow * pixelWidth;
+        for (int y = 0; y < rows; y++, offset += pixelWidth) {
+            plate.get(offset, scanline, 0, pixelWidth);
+            frameWriter.writeScanLine(scanline);
+        }
+    }
+
+    /**
+     * Export every plate to a TIFF in the temp store, timing the reads from the frame buffers
+     * on their own, the previous position-and-get loop, and the complete export.
+     */
+    static void benchmarkPlateExport(IJawsMako mako, ByteBuffer[] buffers, List<String> componentNames, int pixelWidth, int pixelHeight) {
+        var factory = mako.getFactory();
+        byte[] scanline = new byte[pixelWidth];
+        double megabytes = (double) pixelWidth * pixelHeight / 1048576.0;
+
+        for (int j = 0; j < buffers.length; j++) {
+            ByteBuffer plate = buffers[j];
+
+            long start = System.nanoTime();
+            for (int y = 0; y < pixelHeight; y++) {
+                plate.position(y * pixelWidth);
+                plate.get(scanline, 0, pixelWidth);
             }
-            System.out.println("Rendering complete.");
+            double positionedReadSeconds = (System.nanoTime() - start) / 1e9;
 
-        } catch (Exception e) {
-            System.err.println("Exception: " + e.getMessage());
+            start = System.nanoTime();
+            for (int y = 0, offset = 0; y < pixelHeight; y++, offset += pixelWidth)
+                plate.get(offset, scanline, 0, pixelWidth);
+            double bulkReadSeconds = (System.nanoTime() - start) / 1e9;
+
+            var temp = mako.getTempStore().createTemporaryReaderWriter();
+            var pair = IDOMTIFFImage.createWriterAndImage(
+                    mako,
+                    IDOMColorSpaceDeviceGray.create(factory),
+                    pixelWidth,
+                    pixelHeight,
+                    (short) 8,
+                    96.0, 96.0,
+                    IDOMTIFFImage.eTIFFCompression.eTCAuto,
+                    IDOMTIFFImage.eTIFFPrediction.eTPNone,
+                    eImageExtraChannelType.eIECNone,
+                    false,
+                    temp.toIInputStream(),
+                    temp.toIOutputStream()
+            );
+            start = System.nanoTime();
+            exportRows(plate, 0, pixelHeight, pixelWidth, pair.getFrameWriter(), scanline);
+            pair.getFrameWriter().flushData();
+            double exportSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-12s %7.1f MB: position+get %.3f s, bulk get %.3f s, full export %.3f s (%.0f MB/s, %.1f%% reading buffers)%n",
+                    componentNames.get(j), megabytes, positionedReadSeconds, bulkReadSeconds, exportSeconds,
+                    megabytes / exportSeconds, 100.0 * bulkReadSeconds / exportSeconds);
+        }
+    }
+
+    // Bands requested on the command line, otherwise the whole page on one thread or four bands per thread
+    static int bandRowsFor(int pixelHeight, int bandHeight, int threads) {
+        if (bandHeight > 0)
+            return Math.min(bandHeight, pixelHeight);
+        if (threads <= 1)
+            return pixelHeight;
+        return Math.max(1, (pixelHeight + 4 * threads - 1) / (4 * threads));
+    }
+
+    /**
+     * Render the page at each thread count without writing any output, and report
+     * the time taken and the speed-up over the first thread count.
+     */
+    static void benchmarkBandRendering(BandedSeparationRenderer bandRenderer, int pixelWidth, int pixelHeight,
+                                       int bandHeight, int[] threadCounts) {
+        System.out.printf("Page is %d x %d pixels%n", pixelWidth, pixelHeight);
+
+        // Warm up
+        bandRenderer.render(bandRowsFor(pixelHeight, bandHeight, threadCounts[0]), threadCounts[0], (b, r, t, n) -> {});
+
+        double baseline = 0;
+        for (int threads : threadCounts) {
+            int bandRows = bandRowsFor(pixelHeight, bandHeight, threads);
+            long start = System.nanoTime();
+            bandRenderer.render(bandRows, threads, (b, r, t, n) -> {});
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (baseline == 0)
+                baseline = seconds;
+            System.out.printf("%3d threads, %5d-row bands: %7.3f s, speed-up %.2fx%n", threads, bandRows, seconds, baseline / seconds);
         }
     }
 }
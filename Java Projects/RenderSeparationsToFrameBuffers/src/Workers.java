@@ -0,0 +1,53 @@
+/* -----------------------------------------------------------------------
+ * <copyright file="Workers.java" company="Hybrid Software Helix Ltd">
+ *  Copyright (C) 2025 Hybrid Software Helix Ltd. All rights reserved.
+ * </copyright>
+ * <summary>
+ *  Thread helpers shared by the band renderer, the plate encoder and the
+ *  ink-discovery prefetcher: named daemon worker threads, and waiting for
+ *  a task with its failure rethrown on the waiting thread.
+ * </summary>
+ * -----------------------------------------------------------------------
+ */
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Workers {
+    private Workers() {}
+
+    /**
+     * Makes daemon threads named {@code <name>-1}, {@code <name>-2} and so on, so a pool that
+     * is never shut down cannot keep the JVM running.
+     */
+    public static ThreadFactory daemonThreads(String name) {
+        AtomicInteger threadNo = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Wait for a task and return its result. An unchecked exception or error thrown by the task
+     * is rethrown as it is; a checked one, or being interrupted, becomes an IllegalStateException.
+     */
+    public static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a task", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            if (cause instanceof Error error)
+                throw error;
+            throw new IllegalStateException("Task failed", cause);
+        }
+    }
+}